@@ -1,7 +1,14 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 public class Client {
@@ -11,6 +18,11 @@ public class Client {
 
   private String platformFilter;
 
+  private static final long DEFAULT_BATCH_TIMEOUT_MILLIS = 30_000; // Per command in --batch mode
+  private static final int BATCH_WINDOW = 64; // Commands in flight per connection in --batch mode
+  private static final String PROTOCOL_REJECTED =
+    "The client chooses the protocol itself, 'protocol' cannot be sent from here\n";
+
   private static void printMenuOptions() {
     System.out.println("Menu:");
     System.out.println("random - display a random game");
@@ -31,25 +43,53 @@ public class Client {
       "platforms - view the available platforms you can search for"
     );
     System.out.println("search <game_title>");
+    System.out.println(
+      "suggest <prefix> [count] - the best games whose title starts with <prefix>"
+    );
+    System.out.println(
+      "stats-by <platform|year> - game counts and score statistics per platform or release year"
+    );
+    System.out.println(
+      "query [platform=<a,b>] [meta=<low>..<high>] [user=<low>..<high>] [date=<from>..<to>] [title=<text>]"
+    );
+    System.out.println(
+      "      [sort=meta|user|date|title[:asc|:desc]] [limit=<n>] [cursor=<token>] - combine filters, page through results"
+    );
+    System.out.println(
+      "compress <on|off> - compress large responses (on by default when the server offers it)"
+    );
     System.out.println("help - print this menu again");
     System.out.println("exit - exit the program");
     System.out.println();
   }
 
+  // The connection's protocol is negotiated by GameClient; switching it from under the client would leave the
+  // server and the client reading different framings
+  private static boolean isProtocolCommand(String command) {
+    return command.trim().split("\\s+")[0].equals("protocol");
+  }
+
+  private static void exitWithUsage() {
+    System.out.println("Usage: java Client <SERVER_ADDRESS> <SERVER_PORT>");
+    System.out.println(
+      "       java Client <SERVER_ADDRESS> <SERVER_PORT> --batch <file|-> [--timeout <ms>] [--connections <n>]"
+    );
+    System.exit(1);
+  }
+
   public static void main(String[] args) {
-    if (args.length != 2) {
-      System.out.println("Usage: java Client <SERVER_ADDRESS> <SERVER_PORT>");
-      System.exit(1);
+    if (args.length != 2 && !(args.length >= 4 && args[2].equals("--batch"))) {
+      exitWithUsage();
     }
 
     String SERVER_ADDRESS = args[0];
     int SERVER_PORT = Integer.parseInt(args[1]);
+    if (args.length > 2) {
+      runBatch(SERVER_ADDRESS, SERVER_PORT, args);
+      return;
+    }
     try (
-      Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-      BufferedReader in = new BufferedReader(
-        new InputStreamReader(socket.getInputStream())
-      );
-      PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+      GameClient client = GameClient.connect(SERVER_ADDRESS, SERVER_PORT);
       BufferedReader stdin = new BufferedReader(
         new InputStreamReader(System.in)
       )
@@ -59,7 +99,7 @@ public class Client {
         "Connected to " + SERVER_ADDRESS + " on port " + SERVER_PORT
       );
 
-      System.out.println(in.readLine());
+      System.out.println(client.greeting());
       // Print menu options
       printMenuOptions();
 
@@ -69,28 +109,106 @@ public class Client {
         String userInput = stdin.readLine();
 
         // Check if user wants to exit
-        if (userInput.equals("help")) {
+        if (userInput == null || userInput.equals("exit")) {
+          break;
+        } else if (userInput.equals("help")) {
           printMenuOptions();
           continue;
-        } else if (userInput.equals("exit")) {
-          break;
+        } else if (isProtocolCommand(userInput)) {
+          System.out.println(PROTOCOL_REJECTED);
+          continue;
         }
 
-        // Send user input to server
-        out.println(userInput);
+        // Send user input to server, then receive and print its response
+        System.out.println(client.send(userInput).join());
+      }
+    } catch (IOException | CompletionException e) {
+      e.printStackTrace();
+    }
+  }
 
-        // Receive and print response from server
-        StringBuilder response = new StringBuilder();
-        String line;
-        while ((line = in.readLine()) != null) {
-          if (line.equals("<endoftransmission>")) break;
-          response.append(line).append(System.lineSeparator());
+  // Streams commands from a file (or stdin for "-") with many in flight, printing the responses in file order
+  private static void runBatch(String address, int port, String[] args) {
+    String file = args[3];
+    long timeoutMillis = DEFAULT_BATCH_TIMEOUT_MILLIS;
+    int connections = 1;
+    for (int i = 4; i < args.length; i += 2) {
+      if (i + 1 == args.length) {
+        System.out.println("Missing value for option: " + args[i]);
+        exitWithUsage();
+      }
+      try {
+        switch (args[i]) {
+          case "--timeout":
+            timeoutMillis = Long.parseLong(args[i + 1]);
+            break;
+          case "--connections":
+            connections = Integer.parseInt(args[i + 1]);
+            break;
+          default:
+            System.out.println("Unknown option: " + args[i]);
+            exitWithUsage();
         }
-
-        System.out.println(response.toString());
+      } catch (NumberFormatException e) {
+        System.out.println("Invalid value for option " + args[i] + ": " + args[i + 1]);
+        exitWithUsage();
+      }
+    }
+    try (
+      GameClientPool pool = GameClientPool.connect(address, port, connections);
+      BufferedReader commands = file.equals("-")
+        ? new BufferedReader(new InputStreamReader(System.in))
+        : Files.newBufferedReader(Paths.get(file))
+    ) {
+      // Responses are printed in command order; at most BATCH_WINDOW commands wait for theirs at once
+      ArrayDeque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+      ArrayDeque<String> inFlightCommands = new ArrayDeque<>();
+      String command;
+      while ((command = commands.readLine()) != null) {
+        if (command.isBlank()) {
+          continue;
+        }
+        // Handled here as at the prompt: 'exit' ends the batch and 'help' prints the menu in its place
+        if (command.equals("exit")) {
+          break;
+        } else if (command.equals("help")) {
+          while (!inFlight.isEmpty()) {
+            printResponse(inFlight.poll(), inFlightCommands.poll());
+          }
+          printMenuOptions();
+          continue;
+        }
+        if (inFlight.size() == BATCH_WINDOW * pool.size()) {
+          printResponse(inFlight.poll(), inFlightCommands.poll());
+        }
+        inFlight.add(
+          isProtocolCommand(command)
+            ? CompletableFuture.completedFuture(PROTOCOL_REJECTED) // Printed in its place like a response
+            : pool.send(command).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+        );
+        inFlightCommands.add(command);
+      }
+      while (!inFlight.isEmpty()) {
+        printResponse(inFlight.poll(), inFlightCommands.poll());
       }
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
+
+  private static void printResponse(
+    CompletableFuture<String> response,
+    String command
+  ) {
+    try {
+      System.out.println(response.join());
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        System.out.println("Timed out: " + command);
+      } else {
+        System.out.println("Failed: " + command + " (" + e.getCause() + ")");
+      }
+      System.out.println();
+    }
+  }
 }
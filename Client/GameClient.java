@@ -0,0 +1,239 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// One connection to the game server that keeps any number of commands in flight
+//
+// send writes the command straight away and returns a future; a reader thread completes the futures as the
+// responses arrive. Binary frames are matched by request id, text responses by order, which the server keeps.
+// Servers that offer compression are asked to deflate large responses, which the reader inflates again.
+final class GameClient implements AutoCloseable {
+
+  // Length-prefixed frames offered by newer servers, see the server's BinaryProtocol for the layout
+  private static final String BINARY_PROTOCOL = "binary/1";
+  private static final byte FLAG_LAST = 1; // The last frame of a response
+  private static final byte FLAG_DEFLATE = 2; // The body is part of the response's DEFLATE stream
+  private static final String DEFLATE_COMPRESSION = "compression: deflate";
+  // Set -Dclient.compress=false to keep responses uncompressed, e.g. to measure the difference
+  private static final boolean COMPRESS = !"false".equals(
+    System.getProperty("client.compress")
+  );
+  private static final String END_OF_TRANSMISSION = "<endoftransmission>";
+
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private final String greeting;
+  private final boolean binary;
+  private final Map<Integer, CompletableFuture<String>> pendingById = new ConcurrentHashMap<>();
+  private final Queue<CompletableFuture<String>> pendingInOrder = new ConcurrentLinkedQueue<>();
+  private int nextRequestId = 1; // Guarded by 'out'
+  private final Inflater inflater = new Inflater(); // Reused for every compressed response, only by the reader
+  private final byte[] inflated = new byte[16 * 1024];
+  private volatile IOException failure; // Why the connection stopped, once it has
+
+  private GameClient(Socket socket) throws IOException {
+    this.socket = socket;
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    greeting = readLine();
+    if (greeting == null) {
+      throw new EOFException("Server closed the connection before greeting");
+    }
+    // Newer servers list their protocols in the greeting; frames are read without scanning for a sentinel
+    binary = greeting.contains(" " + BINARY_PROTOCOL);
+    if (binary) {
+      writeLine("protocol " + BINARY_PROTOCOL);
+      readTextResponse(); // The switch is confirmed in the old framing, nothing follows until we send a frame
+      if (COMPRESS && greeting.contains(DEFLATE_COMPRESSION)) {
+        writeFrame(nextRequestId++, "compress on");
+        readFrames(new int[1]);
+      }
+    }
+    Thread reader = new Thread(this::readResponses, "game-client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  static GameClient connect(String host, int port) throws IOException {
+    Socket socket = new Socket(host, port);
+    try {
+      return new GameClient(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  String greeting() {
+    return greeting;
+  }
+
+  boolean isBinary() {
+    return binary;
+  }
+
+  // Sends the command without waiting; the future completes with the response text, as the REPL prints it
+  CompletableFuture<String> send(String command) {
+    CompletableFuture<String> response = new CompletableFuture<>();
+    synchronized (out) {
+      if (failure != null) {
+        response.completeExceptionally(failure);
+        return response;
+      }
+      try {
+        if (binary) {
+          int requestId = nextRequestId++;
+          pendingById.put(requestId, response);
+          writeFrame(requestId, command);
+        } else {
+          pendingInOrder.add(response);
+          writeLine(command);
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    return response;
+  }
+
+  @Override
+  public void close() throws IOException {
+    fail(new IOException("Client closed"));
+    socket.close();
+  }
+
+  private void readResponses() {
+    try {
+      while (true) {
+        if (binary) {
+          int[] requestId = new int[1];
+          String response = readFrames(requestId);
+          CompletableFuture<String> pending = pendingById.remove(requestId[0]);
+          if (pending != null) {
+            pending.complete(response);
+          }
+        } else {
+          String response = readTextResponse();
+          CompletableFuture<String> pending = pendingInOrder.poll();
+          if (pending != null) {
+            pending.complete(response);
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  // Fails every command still waiting, and every later one
+  private void fail(IOException e) {
+    synchronized (out) { // So no send can register a command after the pending ones were failed
+      if (failure == null) {
+        failure = e;
+      }
+      pendingById.values().forEach(pending -> pending.completeExceptionally(e));
+      pendingById.clear();
+      CompletableFuture<String> pending;
+      while ((pending = pendingInOrder.poll()) != null) {
+        pending.completeExceptionally(e);
+      }
+    }
+  }
+
+  // Reads lines up to the <endoftransmission> line of the legacy text protocol
+  private String readTextResponse() throws IOException {
+    StringBuilder response = new StringBuilder();
+    String line;
+    while ((line = readLine()) != null) {
+      if (line.equals(END_OF_TRANSMISSION)) {
+        return response.toString();
+      }
+      response.append(line).append(System.lineSeparator());
+    }
+    throw new EOFException("Server closed the connection");
+  }
+
+  // Frame header: int body length, int request id, byte status, byte flags
+  private void writeFrame(int requestId, String command) throws IOException {
+    byte[] body = command.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(body.length);
+    out.writeInt(requestId);
+    out.writeByte(0);
+    out.writeByte(0);
+    out.write(body);
+    out.flush();
+  }
+
+  // Reads every frame of one response, each body in a single bulk read; the server never interleaves responses
+  private String readFrames(int[] requestId) throws IOException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    boolean first = true;
+    byte flags;
+    do {
+      int length = in.readInt();
+      requestId[0] = in.readInt();
+      in.readByte(); // Status, the body already says what went wrong
+      flags = in.readByte();
+      byte[] body = new byte[length];
+      in.readFully(body);
+      if ((flags & FLAG_DEFLATE) != 0) {
+        if (first) {
+          inflater.reset(); // Each compressed response is a stream of its own
+        }
+        inflate(body, response);
+      } else {
+        response.write(body);
+      }
+      first = false;
+    } while ((flags & FLAG_LAST) == 0);
+    return response.toString(StandardCharsets.UTF_8);
+  }
+
+  // Inflates one frame's part of the stream; every frame ends on a flush, so all of its text comes out now
+  private void inflate(byte[] body, ByteArrayOutputStream response) throws IOException {
+    inflater.setInput(body);
+    try {
+      while (!inflater.finished()) {
+        int n = inflater.inflate(inflated);
+        if (n == 0) {
+          if (inflater.needsInput()) {
+            break;
+          }
+          throw new IOException("Compressed response needs a preset dictionary");
+        }
+        response.write(inflated, 0, n);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed response", e);
+    }
+  }
+
+  private void writeLine(String line) throws IOException {
+    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  // Reads up to '\n' (dropping a '\r' before it), or null at the end of the stream
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+      }
+      line.write(b);
+    }
+    String text = line.toString(StandardCharsets.UTF_8);
+    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+  }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Several GameClient connections to one server, with commands spread over them round robin
+//
+// The platform filter and protocol are per connection on the server, so 'platform' commands go to every
+// connection; they are queued on each one before any command sent after them.
+final class GameClientPool implements AutoCloseable {
+
+  private final List<GameClient> clients = new ArrayList<>();
+  private final AtomicInteger next = new AtomicInteger();
+
+  private GameClientPool() {}
+
+  static GameClientPool connect(String host, int port, int size)
+    throws IOException {
+    GameClientPool pool = new GameClientPool();
+    try {
+      for (int i = 0; i < size; i++) {
+        pool.clients.add(GameClient.connect(host, port));
+      }
+    } catch (IOException e) {
+      pool.close();
+      throw e;
+    }
+    return pool;
+  }
+
+  int size() {
+    return clients.size();
+  }
+
+  synchronized CompletableFuture<String> send(String command) {
+    if (command.equals("platform") || command.startsWith("platform ")) {
+      return sendToAll(command);
+    }
+    int index = Math.floorMod(next.getAndIncrement(), clients.size());
+    return clients.get(index).send(command);
+  }
+
+  // Sends the command on every connection; completes with the first connection's response once all answered
+  synchronized CompletableFuture<String> sendToAll(String command) {
+    List<CompletableFuture<String>> responses = new ArrayList<>();
+    for (GameClient client : clients) {
+      responses.add(client.send(command));
+    }
+    return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0]))
+      .thenApply(done -> responses.get(0).join());
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (GameClient client : clients) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a running server over real sockets and reports throughput and latency percentiles as JSON
+//
+//   java LoadGenerator [--host localhost] [--port 5000] [--mode closed|open] [--connections 4]
+//     [--concurrency 16] [--rate 1000] [--duration 30] [--warmup 5]
+//     [--mix "top 10=40;search dark=30;random 5=20;worst 10=10"] [--out file]
+//
+// Closed mode keeps --concurrency commands in flight and sends the next one as each response arrives, which
+// measures the most the server can do. Open mode sends --rate commands per second on a fixed schedule whatever
+// the server does and times each command from when it was due, so a stalled server shows up in the latencies
+// instead of just slowing the senders down. Commands sent during the warmup are not recorded.
+public class LoadGenerator {
+
+  private static final String DEFAULT_MIX =
+    "top 10=40;search dark=30;random 5=20;worst 10=10";
+
+  private final GameClientPool pool;
+  private final String[] commands;
+  private final int[] cumulativeWeights;
+  private final Map<String, LatencyHistogram> byCommand = new LinkedHashMap<>();
+  private final LatencyHistogram overall = new LatencyHistogram();
+  private final AtomicLong errors = new AtomicLong();
+  private long recordFrom; // System.nanoTime() after which commands are recorded
+  private long stopAt; // System.nanoTime() after which no command is sent
+
+  private LoadGenerator(GameClientPool pool, Map<String, Integer> mix) {
+    this.pool = pool;
+    commands = mix.keySet().toArray(new String[0]);
+    cumulativeWeights = new int[commands.length];
+    int sum = 0;
+    for (int i = 0; i < commands.length; i++) {
+      sum += mix.get(commands[i]);
+      cumulativeWeights[i] = sum;
+      byCommand.put(commands[i], new LatencyHistogram());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    String host = options.getOrDefault("host", "localhost");
+    int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+    String mode = options.getOrDefault("mode", "closed");
+    int connections = Integer.parseInt(options.getOrDefault("connections", "4"));
+    int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+    double rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+    double duration = Double.parseDouble(options.getOrDefault("duration", "30"));
+    double warmup = Double.parseDouble(options.getOrDefault("warmup", "5"));
+    Map<String, Integer> mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+    if (!mode.equals("closed") && !mode.equals("open")) {
+      usage("Unknown mode: " + mode);
+    }
+
+    try (GameClientPool pool = GameClientPool.connect(host, port, connections)) {
+      LoadGenerator generator = new LoadGenerator(pool, mix);
+      long start = System.nanoTime();
+      generator.recordFrom = start + seconds(warmup);
+      generator.stopAt = generator.recordFrom + seconds(duration);
+      if (mode.equals("closed")) {
+        generator.runClosed(concurrency);
+      } else {
+        generator.runOpen(rate);
+      }
+      String report = generator.report(mode, connections, concurrency, rate, duration);
+      if (options.containsKey("out")) {
+        Files.writeString(Path.of(options.get("out")), report);
+      } else {
+        System.out.println(report);
+      }
+    }
+  }
+
+  // Each of 'concurrency' chains sends its next command from the completion of the previous one
+  private void runClosed(int concurrency) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      sendNext(done);
+    }
+    done.await();
+  }
+
+  private void sendNext(CountDownLatch done) {
+    long sentAt = System.nanoTime();
+    if (sentAt - stopAt >= 0) {
+      done.countDown();
+      return;
+    }
+    String command = pickCommand();
+    pool
+      .send(command)
+      .whenCompleteAsync((response, failure) -> {
+        record(command, sentAt, failure);
+        sendNext(done);
+      });
+  }
+
+  // Sends on a fixed schedule from one thread, then waits for the commands still in flight
+  private void runOpen(double rate) {
+    long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    List<CompletableFuture<String>> inFlight = new ArrayList<>();
+    long due = System.nanoTime();
+    while (due - stopAt < 0) {
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      long intended = due;
+      String command = pickCommand();
+      CompletableFuture<String> response = pool.send(command);
+      response.whenComplete((text, failure) -> record(command, intended, failure));
+      inFlight.add(response);
+      if (inFlight.size() >= 4096) {
+        inFlight.removeIf(CompletableFuture::isDone);
+      }
+      due += interval;
+    }
+    for (CompletableFuture<String> response : inFlight) {
+      try {
+        response.join();
+      } catch (RuntimeException e) {
+        // Counted as an error when it completed
+      }
+    }
+  }
+
+  private void record(String command, long since, Throwable failure) {
+    if (since - recordFrom < 0) {
+      return; // Still warming up
+    }
+    if (failure != null) {
+      errors.incrementAndGet();
+      return;
+    }
+    long latency = System.nanoTime() - since;
+    overall.record(latency);
+    byCommand.get(command).record(latency);
+  }
+
+  private String pickCommand() {
+    int pick = ThreadLocalRandom.current()
+      .nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (pick < cumulativeWeights[i]) {
+        return commands[i];
+      }
+    }
+    return commands[commands.length - 1];
+  }
+
+  private String report(
+    String mode,
+    int connections,
+    int concurrency,
+    double rate,
+    double duration
+  ) {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"mode\": \"").append(mode).append("\",\n");
+    json.append("  \"connections\": ").append(connections).append(",\n");
+    if (mode.equals("closed")) {
+      json.append("  \"concurrency\": ").append(concurrency).append(",\n");
+    } else {
+      json.append("  \"targetRate\": ").append(rate).append(",\n");
+    }
+    json.append("  \"durationSeconds\": ").append(duration).append(",\n");
+    json.append("  \"errors\": ").append(errors.get()).append(",\n");
+    json.append("  \"overall\": ");
+    appendStats(json, overall, duration);
+    json.append(",\n  \"commands\": {");
+    String separator = "\n";
+    for (Map.Entry<String, LatencyHistogram> entry : byCommand.entrySet()) {
+      json.append(separator).append("    ").append(quote(entry.getKey())).append(": ");
+      appendStats(json, entry.getValue(), duration);
+      separator = ",\n";
+    }
+    json.append("\n  }\n}");
+    return json.toString();
+  }
+
+  // Throughput in responses per second, latencies in microseconds
+  private static void appendStats(StringBuilder json, LatencyHistogram histogram, double duration) {
+    json
+      .append("{\"count\": ")
+      .append(histogram.count())
+      .append(", \"throughput\": ")
+      .append(String.format(Locale.ROOT, "%.1f", histogram.count() / duration))
+      .append(", \"p50\": ")
+      .append(micros(histogram.percentile(0.50)))
+      .append(", \"p90\": ")
+      .append(micros(histogram.percentile(0.90)))
+      .append(", \"p99\": ")
+      .append(micros(histogram.percentile(0.99)))
+      .append(", \"p999\": ")
+      .append(micros(histogram.percentile(0.999)))
+      .append(", \"max\": ")
+      .append(micros(histogram.max()))
+      .append('}');
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+  }
+
+  private static String quote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static long seconds(double seconds) {
+    return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        usage("Unexpected argument: " + args[i]);
+      }
+      options.put(args[i].substring(2), args[++i]);
+    }
+    return options;
+  }
+
+  // "command=weight;command=weight", a command without a weight counts once
+  private static Map<String, Integer> parseMix(String mix) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(";")) {
+      if (part.isBlank()) {
+        continue;
+      }
+      int equals = part.lastIndexOf('=');
+      String command = (equals < 0 ? part : part.substring(0, equals)).trim();
+      int weight = equals < 0 ? 1 : Integer.parseInt(part.substring(equals + 1).trim());
+      if (weight > 0) {
+        weights.merge(command, weight, Integer::sum);
+      }
+    }
+    if (weights.isEmpty()) {
+      usage("The mix has no commands");
+    }
+    return weights;
+  }
+
+  private static void usage(String problem) {
+    PrintStream err = System.err;
+    err.println(problem);
+    err.println(
+      "Usage: java LoadGenerator [--host <host>] [--port <port>] [--mode closed|open] [--connections <n>]"
+    );
+    err.println(
+      "         [--concurrency <n>] [--rate <per second>] [--duration <s>] [--warmup <s>] [--mix <cmd=weight;...>] [--out <file>]"
+    );
+    System.exit(1);
+  }
+}
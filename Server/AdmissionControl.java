@@ -0,0 +1,67 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounds how many requests are answered at once, so a burst of work waits briefly in line and the rest is turned
+// away with a busy response instead of slowing every request down
+//
+// Up to MAX_ACTIVE requests run at a time and up to QUEUE_LENGTH more wait for a slot, first come first served,
+// for at most WAIT_MILLIS each. A request that finds the queue full is rejected straight away, which costs the
+// server next to nothing, so the requests it does take keep a predictable latency.
+final class AdmissionControl {
+
+  // Requests answered at once, override with -Dserver.maxActiveRequests=<n>
+  static final int MAX_ACTIVE = Integer.getInteger(
+    "server.maxActiveRequests",
+    4 * Runtime.getRuntime().availableProcessors()
+  );
+  // Requests that may wait for a slot, override with -Dserver.admissionQueue=<n>
+  private static final int QUEUE_LENGTH = Integer.getInteger("server.admissionQueue", 256);
+  // Longest a request waits for a slot before it is rejected, override with -Dserver.admissionWaitMillis=<n>
+  private static final long WAIT_MILLIS = Long.getLong("server.admissionWaitMillis", 1000);
+
+  private final Semaphore slots = new Semaphore(MAX_ACTIVE, true); // Fair, so waiting requests go in order
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  // Whether the request may run, in which case the caller must call exit once it is answered; a thread that must
+  // not block, such as a selector loop, passes mayWait false and only takes a free slot
+  boolean enter(boolean mayWait) {
+    try {
+      if (slots.tryAcquire(0, TimeUnit.MILLISECONDS)) { // Unlike tryAcquire(), this does not jump the queue
+        return true;
+      }
+      if (!mayWait) {
+        return false;
+      }
+      if (waiting.incrementAndGet() > QUEUE_LENGTH) {
+        waiting.decrementAndGet();
+        return false;
+      }
+      try {
+        return slots.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      } finally {
+        waiting.decrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  void exit() {
+    slots.release();
+  }
+
+  String report() {
+    return (
+      (MAX_ACTIVE - slots.availablePermits()) +
+      " of " +
+      MAX_ACTIVE +
+      " slots in use, " +
+      Math.min(waiting.get(), QUEUE_LENGTH) + // Briefly above while a rejected request backs out
+      " of " +
+      QUEUE_LENGTH +
+      " waiting"
+    );
+  }
+}
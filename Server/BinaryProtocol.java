@@ -0,0 +1,65 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed framing that a client can switch to with 'protocol binary/1' after the text greeting
+//
+// Every frame, in both directions, is a 10 byte header followed by the body:
+//   int bodyLength, int requestId, byte status, byte flags
+// A request is one frame whose body is the command as UTF-8. A response is one or more frames with the
+// request's id; the last one has FLAG_LAST set and carries the final status. Response bodies are the text
+// the legacy protocol sends, without the trailing <endoftransmission> line. Numbers are big-endian.
+//
+// After 'compress on' a large response is sent as one zlib stream: each of its frames has FLAG_DEFLATE set and
+// carries the next part of the stream, ending on a sync flush, and the last frame finishes it.
+final class BinaryProtocol {
+
+  static final String TEXT = "text/1";
+  static final String BINARY = "binary/1";
+  static final String DEFLATE = "deflate";
+  static final String GREETING =
+    "Hello from server! protocols: " + TEXT + " " + BINARY + " compression: " + DEFLATE;
+
+  static final int HEADER_BYTES = 10;
+  static final byte FLAG_LAST = 1; // The last frame of a response
+  static final byte FLAG_DEFLATE = 2; // The body is part of the response's DEFLATE stream
+
+  static final byte STATUS_OK = 0;
+  static final byte STATUS_BAD_REQUEST = 1; // The command or its arguments were not accepted
+  static final byte STATUS_SERVER_ERROR = 2; // The server failed while answering
+  static final byte STATUS_BUSY = 3; // Not answered because the server or the connection is over a limit, retry later
+
+  private BinaryProtocol() {}
+
+  record Request(int id, String command) {}
+
+  static ByteBuffer header(int bodyLength, int requestId, byte status, byte flags) {
+    return ByteBuffer.allocate(HEADER_BYTES)
+      .putInt(bodyLength)
+      .putInt(requestId)
+      .put(status)
+      .put(flags)
+      .flip();
+  }
+
+  // Reads one request frame, or returns null if the stream ends before a new frame starts
+  static Request read(DataInputStream in, int maxBodyBytes) throws IOException {
+    int bodyLength;
+    try {
+      bodyLength = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    int requestId = in.readInt();
+    in.readByte(); // Status, unused in requests
+    in.readByte(); // Flags, unused in requests
+    if (bodyLength < 0 || bodyLength > maxBodyBytes) {
+      throw new IOException("Request frame of " + bodyLength + " bytes");
+    }
+    byte[] body = new byte[bodyLength];
+    in.readFully(body); // One bulk read instead of scanning for a line break
+    return new Request(requestId, new String(body, StandardCharsets.UTF_8));
+  }
+}
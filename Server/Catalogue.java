@@ -0,0 +1,396 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Read-only view of the game database, partitioned by platform and ranked once at load time
+final class Catalogue {
+
+  private static final int[] NO_GAMES = new int[0];
+
+  private final GameStore store; // The games themselves, one column per field
+  private final long rowLayoutBytes; // Estimated heap the same rows took as a HashMap of String[]
+  private final CsvLoader.Source source; // The CSV bytes this was built from, null if unknown
+
+  // Game indexes for all platforms and partitioned per platform id, in catalogue order
+  private final int[] allGames;
+  private final int[][] gamesByPlatform;
+
+  private final TitleIndex titleIndex; // Trigram index over the titles for 'search'
+  private final QueryIndex queryIndex; // Score, date and title orders for 'query'
+  // Title prefix tries for 'suggest', one per platform id and the last one for all platforms; cheap to build, so
+  // they are rebuilt on load rather than kept in the snapshot, and -Dserver.suggestK can change between runs
+  private final SuggestIndex[] suggestIndexes;
+  // 'stats-by' results per dimension and platform filter, computed on first use; a few lines each, and they go
+  // away with the catalogue when a reload swaps in the next one
+  private final Map<String, List<GroupStats.Group>> groupStats = new ConcurrentHashMap<>();
+
+  // Identifies this catalogue in 'query' cursors, so a cursor from before a reload is not applied to another one
+  private final int stamp = ThreadLocalRandom.current().nextInt();
+
+  // Each game's block of 'random' and 'search' output, encoded once so responses can send the bytes as they are
+  private final PackedStrings gameBlocks;
+
+  // Games with both scores, best first and worst first, for all platforms and per platform id
+  private final int[] topOrder;
+  private final int[] worstOrder;
+  private final int[][] topOrderByPlatform;
+  private final int[][] worstOrderByPlatform;
+
+  Catalogue(
+    Map<String, String[]> map,
+    boolean offHeapText,
+    CsvLoader.Source source
+  ) {
+    this.source = source;
+    rowLayoutBytes = GameStore.estimateRowLayoutBytes(map.values());
+    store = new GameStore(map.values(), offHeapText);
+    int size = store.size();
+    int platformCount = store.platformCount();
+    allGames = new int[size];
+    int[] platformSizes = new int[platformCount];
+    for (int i = 0; i < size; i++) {
+      allGames[i] = i;
+      platformSizes[store.platformId(i)]++;
+    }
+
+    // Fill the per-platform partitions in catalogue order, so ties in the rankings stay stable
+    gamesByPlatform = new int[platformCount][];
+    for (int id = 0; id < platformCount; id++) {
+      gamesByPlatform[id] = new int[platformSizes[id]];
+      platformSizes[id] = 0; // Reused as the fill position of the partition
+    }
+    for (int i = 0; i < size; i++) {
+      int id = store.platformId(i);
+      gamesByPlatform[id][platformSizes[id]++] = i;
+    }
+
+    int[] scored = scoredGames(allGames);
+    topOrder = sort(scored, this::compareBest);
+    worstOrder = sort(scored, this::compareWorst);
+    topOrderByPlatform = new int[platformCount][];
+    worstOrderByPlatform = new int[platformCount][];
+    for (int id = 0; id < platformCount; id++) {
+      int[] scoredOnPlatform = scoredGames(gamesByPlatform[id]);
+      topOrderByPlatform[id] = sort(scoredOnPlatform, this::compareBest);
+      worstOrderByPlatform[id] = sort(scoredOnPlatform, this::compareWorst);
+    }
+
+    titleIndex = new TitleIndex(store);
+    queryIndex = new QueryIndex(store);
+    suggestIndexes = buildSuggestIndexes(store, allGames, gamesByPlatform);
+
+    String[] blocks = new String[size];
+    for (int i = 0; i < size; i++) {
+      blocks[i] = formatGame(store, i);
+    }
+    gameBlocks = new PackedStrings(blocks, offHeapText);
+  }
+
+  // Reads a catalogue back from a snapshot written by writeTo
+  Catalogue(Snapshot.Reader in) {
+    source = in.readInt() == 0
+      ? null
+      : new CsvLoader.Source(in.readLong(), in.readLong(), in.readInt() == 1, in.readLong());
+    rowLayoutBytes = in.readLong();
+    store = new GameStore(in);
+    allGames = new int[store.size()];
+    for (int i = 0; i < allGames.length; i++) {
+      allGames[i] = i;
+    }
+    gamesByPlatform = readPerPlatform(in);
+    topOrder = in.readInts();
+    worstOrder = in.readInts();
+    topOrderByPlatform = readPerPlatform(in);
+    worstOrderByPlatform = readPerPlatform(in);
+    titleIndex = new TitleIndex(store, in);
+    gameBlocks = new PackedStrings(in);
+    queryIndex = new QueryIndex(store, in);
+    suggestIndexes = buildSuggestIndexes(store, allGames, gamesByPlatform);
+  }
+
+  private static SuggestIndex[] buildSuggestIndexes(
+    GameStore store,
+    int[] allGames,
+    int[][] gamesByPlatform
+  ) {
+    int[] ranks = SuggestIndex.ranks(store);
+    SuggestIndex[] indexes = new SuggestIndex[gamesByPlatform.length + 1];
+    for (int id = 0; id < gamesByPlatform.length; id++) {
+      indexes[id] = new SuggestIndex(store, gamesByPlatform[id], ranks);
+    }
+    indexes[gamesByPlatform.length] = new SuggestIndex(store, allGames, ranks);
+    return indexes;
+  }
+
+  // Writes the store and everything derived from it, so loading needs no parsing or sorting
+  void writeTo(Snapshot.Writer out) throws IOException {
+    out.writeInt(source == null ? 0 : 1);
+    if (source != null) {
+      out.writeLong(source.length());
+      out.writeLong(source.crc());
+      out.writeInt(source.endsAtRecordBoundary() ? 1 : 0);
+      out.writeLong(source.modifiedMillis());
+    }
+    out.writeLong(rowLayoutBytes);
+    store.writeTo(out);
+    writePerPlatform(out, gamesByPlatform);
+    out.writeInts(topOrder);
+    out.writeInts(worstOrder);
+    writePerPlatform(out, topOrderByPlatform);
+    writePerPlatform(out, worstOrderByPlatform);
+    titleIndex.writeTo(out);
+    gameBlocks.writeTo(out);
+    queryIndex.writeTo(out);
+  }
+
+  // The block describing one game, every field on its own line
+  private static String formatGame(GameStore store, int game) {
+    return String.format(
+      "Title: %s\nPlatform: %s\nRelease Date: %s\nSummary: %s\nMetascore: %s\nUserscore: %s\n",
+      store.title(game),
+      store.platform(game),
+      store.releaseDate(game),
+      store.summary(game),
+      store.metascoreText(game),
+      store.userscoreText(game)
+    );
+  }
+
+  private static int[][] readPerPlatform(Snapshot.Reader in) {
+    int[][] lists = new int[in.readInt()][];
+    for (int id = 0; id < lists.length; id++) {
+      lists[id] = in.readInts();
+    }
+    return lists;
+  }
+
+  private static void writePerPlatform(Snapshot.Writer out, int[][] lists)
+    throws IOException {
+    out.writeInt(lists.length);
+    for (int[] list : lists) {
+      out.writeInts(list);
+    }
+  }
+
+  int size() {
+    return store.size();
+  }
+
+  GameStore store() {
+    return store;
+  }
+
+  // The game's pre-encoded block as a read-only UTF-8 view, for writing straight to a connection
+  ByteBuffer gameBlock(int game) {
+    return gameBlocks.bytes(game);
+  }
+
+  QueryIndex queryIndex() {
+    return queryIndex;
+  }
+
+  int stamp() {
+    return stamp;
+  }
+
+  CsvLoader.Source source() {
+    return source;
+  }
+
+  // The games as CSV rows keyed by title, for building the next catalogue on top of this one
+  Map<String, String[]> rows() {
+    Map<String, String[]> rows = new HashMap<>();
+    for (int i = 0; i < store.size(); i++) {
+      String[] row = store.row(i);
+      rows.put(row[0], row);
+    }
+    return rows;
+  }
+
+  // Canonical spelling of a platform name given in any case, or null if no game is on that platform
+  String canonicalPlatform(String platform) {
+    int id = store.platformIdIgnoreCase(platform);
+    return id < 0 ? null : store.platformName(id);
+  }
+
+  // Every platform in the catalogue, in the order they were first seen
+  List<String> platforms() {
+    String[] names = new String[store.platformCount()];
+    for (int id = 0; id < names.length; id++) {
+      names[id] = store.platformName(id);
+    }
+    return Collections.unmodifiableList(Arrays.asList(names));
+  }
+
+  // Game indexes on the platform filter (a canonical name, null for all platforms); shared, do not modify
+  int[] games(String platformFilter) {
+    if (platformFilter == null) {
+      return allGames;
+    }
+    int id = store.platformIdOf(platformFilter);
+    return id < 0 ? NO_GAMES : gamesByPlatform[id];
+  }
+
+  // Indexes of the games on the platform filter whose title contains the query ignoring case, in catalogue order
+  int[] searchTitles(String query, String platformFilter) {
+    int id = platformFilter == null ? -1 : store.platformIdOf(platformFilter);
+    if (platformFilter != null && id < 0) {
+      return NO_GAMES;
+    }
+    return titleIndex.search(query, games(platformFilter), id);
+  }
+
+  // The k best games on the platform filter whose title starts with the prefix, ignoring case, best first
+  int[] suggest(String prefix, int k, String platformFilter) {
+    if (platformFilter == null) {
+      return suggestIndexes[suggestIndexes.length - 1].suggest(prefix, k);
+    }
+    int id = store.platformIdOf(platformFilter);
+    return id < 0 ? NO_GAMES : suggestIndexes[id].suggest(prefix, k);
+  }
+
+  // Score summaries of the games on the platform filter, grouped by the dimension
+  List<GroupStats.Group> statsBy(GroupStats.Dimension by, String platformFilter) {
+    return groupStats.computeIfAbsent(
+      by.name + " " + platformFilter,
+      key -> GroupStats.compute(store, queryIndex, games(platformFilter), by)
+    );
+  }
+
+  // Whether the game's title contains a needle from TitleIndex.needle, ignoring case
+  boolean titleContains(int game, byte[] needle) {
+    return titleIndex.contains(game, needle);
+  }
+
+  // One line comparing the store's footprint with the old row layout, printed at startup
+  String footprintReport() {
+    return (
+      store.footprintReport(rowLayoutBytes) +
+      ", pre-encoded game blocks " +
+      gameBlocks.memoryBytes() / 1024 +
+      " KB, query indexes " +
+      queryIndex.memoryBytes() / 1024 +
+      " KB, suggestion tries " +
+      suggestMemoryBytes() / 1024 +
+      " KB"
+    );
+  }
+
+  private long suggestMemoryBytes() {
+    long bytes = 0;
+    for (SuggestIndex index : suggestIndexes) {
+      bytes += index.memoryBytes();
+    }
+    return bytes;
+  }
+
+  // One line describing the size of the title index, printed at startup
+  String titleIndexReport() {
+    return (
+      titleIndex.trigramCount() +
+      " trigrams, " +
+      titleIndex.postingCount() +
+      " postings, about " +
+      titleIndex.memoryBytes() / 1024 +
+      " KB"
+    );
+  }
+
+  // Ranked game indexes for the platform filter, best first; empty if nothing on that platform has both scores
+  int[] topOrder(String platformFilter) {
+    if (platformFilter == null) {
+      return topOrder;
+    }
+    int id = store.platformIdOf(platformFilter);
+    return id < 0 ? NO_GAMES : topOrderByPlatform[id];
+  }
+
+
+  // Ranked game indexes for the platform filter, worst first
+  int[] worstOrder(String platformFilter) {
+    if (platformFilter == null) {
+      return worstOrder;
+    }
+    int id = store.platformIdOf(platformFilter);
+    return id < 0 ? NO_GAMES : worstOrderByPlatform[id];
+  }
+
+
+  // The games with both scores, in the order given; games with a "tbd" score are left out of the rankings
+  private int[] scoredGames(int[] games) {
+    int[] scored = new int[games.length];
+    int count = 0;
+    for (int game : games) {
+      if (!Double.isNaN(store.metascore(game)) && !Double.isNaN(store.userscore(game))) {
+        scored[count++] = game;
+      }
+    }
+    return Arrays.copyOf(scored, count);
+  }
+
+  // Higher metascore first, then higher userscore
+  private int compareBest(int g1, int g2) {
+    if (store.metascore(g1) == store.metascore(g2)) {
+      return Double.compare(store.userscore(g2), store.userscore(g1));
+    }
+    return Double.compare(store.metascore(g2), store.metascore(g1));
+  }
+
+  // Lower metascore first, then lower userscore
+  private int compareWorst(int g1, int g2) {
+    if (store.metascore(g1) == store.metascore(g2)) {
+      return Double.compare(store.userscore(g1), store.userscore(g2));
+    }
+    return Double.compare(store.metascore(g1), store.metascore(g2));
+  }
+
+  interface IndexComparator {
+    int compare(int g1, int g2);
+  }
+
+  // Stable merge sort of game indexes on primitive ints, equal games keep their order in 'games'; returns a
+  // sorted copy
+  static int[] sort(int[] games, IndexComparator comparator) {
+    int[] order = games.clone();
+    mergeSort(order, games.clone(), 0, order.length, comparator);
+    return order;
+  }
+
+  // Sorts a[from..to) using b, which must start out as a copy of a, as scratch space
+  private static void mergeSort(
+    int[] a,
+    int[] b,
+    int from,
+    int to,
+    IndexComparator comparator
+  ) {
+    if (to - from < 16) {
+      // Insertion sort for short runs
+      for (int i = from + 1; i < to; i++) {
+        int game = a[i];
+        int j = i - 1;
+        while (j >= from && comparator.compare(a[j], game) > 0) {
+          a[j + 1] = a[j];
+          j--;
+        }
+        a[j + 1] = game;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    // Sort each half of b into place, then merge the halves back into a
+    mergeSort(b, a, from, mid, comparator);
+    mergeSort(b, a, mid, to, comparator);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; k++) {
+      if (j >= to || (i < mid && comparator.compare(b[i], b[j]) <= 0)) {
+        a[k] = b[i++];
+      } else {
+        a[k] = b[j++];
+      }
+    }
+  }
+}
@@ -0,0 +1,20 @@
+// One command's counters and latencies published over JMX as gameserver:type=Command,name=<command>
+public interface CommandStatsMBean {
+  long getRequests();
+
+  long getBadRequests();
+
+  long getServerErrors();
+
+  double getMeanMicros();
+
+  double getP50Micros();
+
+  double getP90Micros();
+
+  double getP99Micros();
+
+  double getP999Micros();
+
+  double getMaxMicros();
+}
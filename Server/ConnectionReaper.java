@@ -0,0 +1,188 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Closes connections that sit idle, send a request too slowly or stop reading their responses, so a misbehaving
+// client cannot hold a session slot, a thread or unsent responses forever
+//
+// The timeouts apply to every front end: the thread-per-connection server and the shard router register each
+// connection here and a background thread checks them, the NIO loops check their own connections with overdue
+// between selects.
+final class ConnectionReaper {
+
+  // Longest a connection may go without a request, override with -Dserver.idleTimeoutMillis=<n>
+  static final long IDLE_TIMEOUT_NANOS = timeout("server.idleTimeoutMillis", 300_000);
+  // Longest a request may take to arrive once it has started, override with -Dserver.readTimeoutMillis=<n>
+  static final long READ_TIMEOUT_NANOS = timeout("server.readTimeoutMillis", 10_000);
+  // Longest a client may go without taking any of its response, override with -Dserver.writeTimeoutMillis=<n>
+  static final long WRITE_TIMEOUT_NANOS = timeout("server.writeTimeoutMillis", 30_000);
+  // How often connections are checked: often enough for the shortest timeout, at least once a second
+  static final long CHECK_INTERVAL_MILLIS = Math.max(
+    10,
+    Math.min(
+      1000,
+      TimeUnit.NANOSECONDS.toMillis(
+        Math.min(IDLE_TIMEOUT_NANOS, Math.min(READ_TIMEOUT_NANOS, WRITE_TIMEOUT_NANOS))
+      ) / 4
+    )
+  );
+
+  private final ServerStats stats;
+  private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+  ConnectionReaper(ServerStats stats) {
+    this.stats = stats;
+  }
+
+  private static long timeout(String property, long defaultMillis) {
+    return TimeUnit.MILLISECONDS.toNanos(Long.getLong(property, defaultMillis));
+  }
+
+  // Why a connection should be closed at 'now', worded to follow "it" in the log, or null if it is fine. 'waiting'
+  // is whether the server is waiting for the client rather than answering it; the times are System.nanoTime
+  // values, 0 when there is none.
+  static String overdue(
+    long now,
+    boolean waiting,
+    long lastActivity,
+    long requestStarted,
+    long writeStalledSince
+  ) {
+    if (writeStalledSince != 0 && now - writeStalledSince > WRITE_TIMEOUT_NANOS) {
+      return "did not read its response for " + seconds(now - writeStalledSince) + " s";
+    }
+    if (!waiting) {
+      return null;
+    }
+    if (requestStarted != 0) {
+      return now - requestStarted > READ_TIMEOUT_NANOS
+        ? "sent part of a request and nothing more for " + seconds(now - requestStarted) + " s"
+        : null;
+    }
+    return now - lastActivity > IDLE_TIMEOUT_NANOS
+      ? "was idle for " + seconds(now - lastActivity) + " s"
+      : null;
+  }
+
+  private static long seconds(long nanos) {
+    return TimeUnit.NANOSECONDS.toSeconds(nanos);
+  }
+
+  // Starts the thread that checks the watched connections
+  void start() {
+    Thread.ofPlatform().name("connection-reaper").daemon().start(() -> {
+      while (true) {
+        try {
+          Thread.sleep(CHECK_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        long now = System.nanoTime();
+        for (Watch watch : watches) {
+          String reason = overdue(
+            now,
+            watch.waiting,
+            watch.lastActivity,
+            watch.requestStarted,
+            watch.writeStarted
+          );
+          if (reason != null) {
+            watch.reap(reason);
+          }
+        }
+      }
+    });
+  }
+
+  Watch watch(SocketChannel channel, InetAddress address) {
+    Watch watch = new Watch(channel, address);
+    watches.add(watch);
+    return watch;
+  }
+
+  // What a blocking connection is doing, updated by its thread and read by the reaper
+  final class Watch implements AutoCloseable {
+
+    private final SocketChannel channel;
+    private final InetAddress address;
+    private volatile boolean waiting; // Between the end of one response and the whole of the next request
+    private volatile long lastActivity = System.nanoTime();
+    private volatile long requestStarted; // When the first bytes of the request being read arrived
+    private volatile long writeStarted; // When the write in progress started, it takes no timeout of its own
+
+    private Watch(SocketChannel channel, InetAddress address) {
+      this.channel = channel;
+      this.address = address;
+    }
+
+    // Before reading the next request
+    void awaitRequest() {
+      requestStarted = 0;
+      lastActivity = System.nanoTime();
+      waiting = true;
+    }
+
+    // Once a whole request has been read
+    void requestRead() {
+      waiting = false;
+      requestStarted = 0;
+    }
+
+    void writing() {
+      writeStarted = System.nanoTime();
+    }
+
+    void written() {
+      writeStarted = 0;
+      lastActivity = System.nanoTime();
+    }
+
+    // Notes when bytes of a request start to arrive, for the read timeout
+    InputStream watchReads(InputStream in) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          arrived(b == -1 ? 0 : 1);
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int read = super.read(buffer, offset, length);
+          arrived(read);
+          return read;
+        }
+      };
+    }
+
+    private void arrived(int bytes) {
+      if (bytes > 0 && waiting && requestStarted == 0) {
+        requestStarted = System.nanoTime();
+      }
+    }
+
+    // Closing the channel wakes the connection's thread from its read or write with an exception
+    private void reap(String reason) {
+      if (watches.remove(this)) {
+        Log.info("SERVER: Closing connection from " + address + ", it " + reason);
+        stats.connectionReaped();
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Nothing left to do for a channel that failed to close
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      watches.remove(this);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+// Loads the Kaggle games CSV by memory-mapping it and parsing chunks of it in parallel on the fork-join pool
+final class CsvLoader {
+
+  private static final long MIN_CHUNK_SIZE = 1 << 20; // Files smaller than this are parsed as one chunk
+  private static final int FIELDS_PER_GAME = 6; // name, platform, release date, summary, metascore, userscore
+
+  private final Path path;
+  private final ForkJoinPool pool;
+  private int malformedRows; // Rows skipped because they have fewer than FIELDS_PER_GAME fields
+  private Source source; // What the last load read, so a later load can tell whether rows were only appended
+
+  // Length and CRC32 of the bytes loaded, whether they ended on a record boundary (so appends start a new row),
+  // and the file's modification time in milliseconds, taken before reading so a later write always changes it
+  record Source(long length, long crc, boolean endsAtRecordBoundary, long modifiedMillis) {}
+
+  CsvLoader(Path path, ForkJoinPool pool) {
+    this.path = path;
+    this.pool = pool;
+  }
+
+  int malformedRows() {
+    return malformedRows;
+  }
+
+  // The file as it was read by the last load or loadAppended call
+  Source source() {
+    return source;
+  }
+
+  // Parses every row after the header into the map keyed by title; later rows replace earlier ones like map.put
+  Map<String, String[]> load() throws IOException {
+    long modified = Files.getLastModifiedTime(path).toMillis();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      // The checksum runs on the pool next to the parse, it lets a reload recognise a file that only grew
+      ForkJoinTask<Long> checksum = pool.submit(() -> {
+        CRC32 crc = new CRC32();
+        update(crc, channel, 0, size);
+        return crc.getValue();
+      });
+      Map<String, String[]> map = new HashMap<>();
+      boolean[] endsInQuotes = new boolean[1];
+      for (String[] row : parseRange(channel, 0, size, true, endsInQuotes)) {
+        map.put(row[0], row); // Add the row to the map, with the first value as the key
+      }
+      source = new Source(
+        size,
+        checksum.join(),
+        !endsInQuotes[0] && endsWithLineBreak(channel, size),
+        modified
+      );
+      return map;
+    }
+  }
+
+  // Rows added after the end of 'previous', in file order, or null if the file changed some other way
+  List<String[]> loadAppended(Source previous) throws IOException {
+    long modified = Files.getLastModifiedTime(path).toMillis();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (!previous.endsAtRecordBoundary() || size < previous.length()) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      update(crc, channel, 0, previous.length());
+      if (crc.getValue() != previous.crc()) {
+        return null; // Something before the old end was edited, the whole file has to be parsed again
+      }
+      update(crc, channel, previous.length(), size);
+      boolean[] endsInQuotes = new boolean[1];
+      List<String[]> rows = parseRange(
+        channel,
+        previous.length(),
+        size,
+        false,
+        endsInQuotes
+      );
+      source = new Source(
+        size,
+        crc.getValue(),
+        !endsInQuotes[0] && endsWithLineBreak(channel, size),
+        modified
+      );
+      return rows;
+    }
+  }
+
+  // Parses the records in [start, end), which must start outside quotes, in parallel chunks; rows come back in file order
+  private List<String[]> parseRange(
+    FileChannel channel,
+    long start,
+    long end,
+    boolean skipHeader,
+    boolean[] endsInQuotes
+  ) {
+    long size = end - start;
+    int chunks = (int) Math.max(
+      1,
+      Math.min(pool.getParallelism() * 4L, size / MIN_CHUNK_SIZE)
+    );
+    long[] nominalStarts = new long[chunks + 1];
+    for (int i = 0; i <= chunks; i++) {
+      nominalStarts[i] = start + size * i / chunks;
+    }
+
+    // Pass 1: count the quotes in every chunk, the running parity tells whether a chunk starts inside quotes
+    List<ForkJoinTask<Integer>> quoteCounts = new ArrayList<>();
+    for (int i = 0; i < chunks; i++) {
+      long from = nominalStarts[i];
+      long to = nominalStarts[i + 1];
+      quoteCounts.add(pool.submit(() -> countQuotes(map(channel, from, to))));
+    }
+    boolean[] startsInQuotes = new boolean[chunks];
+    boolean inQuotes = false;
+    for (int i = 0; i < chunks; i++) {
+      startsInQuotes[i] = inQuotes;
+      inQuotes ^= (quoteCounts.get(i).join() & 1) == 1;
+    }
+    endsInQuotes[0] = inQuotes;
+
+    // Pass 2: move each chunk start to the first record boundary in its chunk; the header line goes to no chunk
+    List<ForkJoinTask<Long>> boundaryTasks = new ArrayList<>();
+    for (int i = 0; i < chunks; i++) {
+      long from = nominalStarts[i];
+      long to = nominalStarts[i + 1];
+      boolean quoted = startsInQuotes[i];
+      boolean header = i == 0 && skipHeader;
+      if (i == 0 && !skipHeader) {
+        boundaryTasks.add(null); // The range itself starts on a record boundary
+        continue;
+      }
+      boundaryTasks.add(
+        pool.submit(() ->
+          from + firstRecordStart(map(channel, from, to), quoted, header)
+        )
+      );
+    }
+    long[] starts = new long[chunks + 1];
+    starts[chunks] = end;
+    for (int i = chunks - 1; i >= 0; i--) {
+      // A chunk without a record boundary of its own is merged into the one before it
+      ForkJoinTask<Long> boundary = boundaryTasks.get(i);
+      starts[i] = Math.min(
+        boundary == null ? nominalStarts[i] : boundary.join(),
+        starts[i + 1]
+      );
+    }
+
+    // Pass 3: parse the chunks in parallel and merge the rows in file order
+    List<ForkJoinTask<List<String[]>>> parseTasks = new ArrayList<>();
+    for (int i = 0; i < chunks; i++) {
+      long from = starts[i];
+      long to = starts[i + 1];
+      parseTasks.add(pool.submit(() -> parse(map(channel, from, to))));
+    }
+    List<String[]> rows = new ArrayList<>();
+    for (ForkJoinTask<List<String[]>> task : parseTasks) {
+      for (String[] row : task.join()) {
+        if (row.length < FIELDS_PER_GAME) {
+          malformedRows++;
+          continue;
+        }
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  private static boolean endsWithLineBreak(FileChannel channel, long size)
+    throws IOException {
+    if (size == 0) {
+      return false;
+    }
+    byte last = map(channel, size - 1, size).get(0);
+    return last == '\n' || last == '\r';
+  }
+
+  // Feeds [from, to) of the file to the checksum, mapping at most 1 GB at a time
+  private static void update(CRC32 crc, FileChannel channel, long from, long to)
+    throws IOException {
+    for (long position = from; position < to; position += 1 << 30) {
+      crc.update(map(channel, position, Math.min(to, position + (1 << 30))));
+    }
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long from, long to)
+    throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+  }
+
+  private static int countQuotes(MappedByteBuffer buffer) {
+    int quotes = 0;
+    for (int i = 0, n = buffer.limit(); i < n; i++) {
+      if (buffer.get(i) == '"') {
+        quotes++;
+      }
+    }
+    return quotes;
+  }
+
+  // Offset just past the first line break outside quotes, or the buffer's length if there is none
+  private static long firstRecordStart(
+    MappedByteBuffer buffer,
+    boolean inQuotes,
+    boolean header
+  ) {
+    int n = buffer.limit();
+    for (int i = 0; i < n; i++) {
+      byte b = buffer.get(i);
+      if (b == '"' && !header) {
+        inQuotes = !inQuotes; // An escaped quote toggles twice, so the parity still holds
+      } else if ((b == '\n' || b == '\r') && (!inQuotes || header)) {
+        if (b == '\r' && i + 1 < n && buffer.get(i + 1) == '\n') {
+          i++;
+        }
+        return i + 1;
+      }
+    }
+    return n;
+  }
+
+  // Parses whole records, decoding fields as UTF-8; multi-byte characters never contain quote, comma or newline bytes
+  private static List<String[]> parse(MappedByteBuffer buffer) {
+    List<String[]> rows = new ArrayList<>();
+    List<String> values = new ArrayList<>(); // Store the values of the current row
+    byte[] currentValue = new byte[256]; // Store the bytes of the current value being read
+    int length = 0;
+    boolean inQuotes = false; // Whether or not we're currently inside a pair of quotes
+    boolean rowStarted = false; // Whether the current row has any content yet
+
+    int n = buffer.limit();
+    for (int i = 0; i < n; i++) {
+      byte b = buffer.get(i);
+      boolean lineBreak = b == '\n' || b == '\r';
+      if (lineBreak && i + 1 < n && b == '\r' && buffer.get(i + 1) == '\n') {
+        i++; // Treat \r\n as one line break
+      }
+      if (inQuotes) {
+        if (b == '"') {
+          if (i + 1 < n && buffer.get(i + 1) == '"') {
+            b = '"'; // An escaped quote adds a single quote to the value
+            i++;
+          } else {
+            inQuotes = false; // A closing quote
+            continue;
+          }
+        } else if (lineBreak) {
+          b = '\n'; // A line break inside quotes is part of the value
+        }
+      } else if (b == '"') {
+        inQuotes = true;
+        rowStarted = true;
+        continue;
+      } else if (b == ',') {
+        values.add(decode(currentValue, length));
+        length = 0;
+        rowStarted = true;
+        continue;
+      } else if (lineBreak) {
+        if (rowStarted || length > 0) {
+          values.add(decode(currentValue, length));
+          rows.add(values.toArray(new String[0]));
+        }
+        values.clear();
+        length = 0;
+        rowStarted = false;
+        continue;
+      }
+      if (length == currentValue.length) {
+        currentValue = Arrays.copyOf(currentValue, length * 2);
+      }
+      currentValue[length++] = b;
+    }
+    // The last record of the file may not end with a line break; one left open in quotes is dropped
+    if (!inQuotes && (rowStarted || length > 0)) {
+      values.add(decode(currentValue, length));
+      rows.add(values.toArray(new String[0]));
+    }
+    return rows;
+  }
+
+  private static String decode(byte[] bytes, int length) {
+    return new String(bytes, 0, length, StandardCharsets.UTF_8).trim();
+  }
+}
@@ -0,0 +1,357 @@
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+
+// One 'query' command: predicates that must all hold, a sort order, and the page to return
+//
+//   query [platform=<name>[,<name>...]] [meta=<low>..<high>] [user=<low>..<high>] [date=<from>..<to>]
+//         [title=<text>] [sort=meta|user|date|title[:asc|:desc]] [limit=<n>] [cursor=<token>]
+//
+// Ranges include both ends and either end can be left out; dates are yyyy, yyyy-mm or yyyy-mm-dd. Without a
+// platform the session's filter applies. Each predicate that an index can answer gives a candidate list, and
+// the smallest one drives the query: its games are checked against the other predicates, so a selective query
+// never looks at the rest of the catalogue. A query that matches a lot and is sorted on an indexed field walks
+// that field's order instead and stops once the page is full.
+final class GameQuery {
+
+  static final int DEFAULT_LIMIT = 10;
+  static final int MAX_LIMIT = 1000;
+  static final String USAGE =
+    "Usage: query [platform=<name>[,<name>...]] [meta=<low>..<high>] [user=<low>..<high>] " +
+    "[date=<from>..<to>] [title=<text>] [sort=meta|user|date|title[:asc|:desc]] [limit=<n>] [cursor=<token>]";
+
+  private static final QueryIndex.Field[] RANGE_FIELDS = {
+    QueryIndex.Field.META,
+    QueryIndex.Field.USER,
+    QueryIndex.Field.DATE,
+  };
+  private static final int SHORTEST_INDEXED_TITLE = 3; // Shorter title terms have no trigram to look up
+
+  private boolean[] platforms; // Allowed platform ids, null for every platform
+  private final double[] low = new double[QueryIndex.Field.values().length]; // Range per field, NaN if none
+  private final double[] high = new double[QueryIndex.Field.values().length];
+  private String title; // Title term, null if none
+  private QueryIndex.Field sort = QueryIndex.Field.META;
+  private boolean descending = true;
+  private int limit = DEFAULT_LIMIT;
+  private String cursor; // Token from the previous page, null for the first page
+
+  // The games of one page in order, and the cursor for the next page or null after the last one
+  record Page(int[] games, String nextCursor) {}
+
+  private GameQuery() {
+    Arrays.fill(low, Double.NaN);
+    Arrays.fill(high, Double.NaN);
+  }
+
+  // Parses the arguments after 'query'; throws IllegalArgumentException with a message for the client
+  static GameQuery parse(
+    String arguments,
+    Catalogue catalogue,
+    String platformFilter
+  ) {
+    GameQuery query = new GameQuery();
+    if (platformFilter != null) {
+      query.platforms = new boolean[catalogue.store().platformCount()];
+      int id = catalogue.store().platformIdOf(platformFilter);
+      if (id >= 0) {
+        query.platforms[id] = true; // A reload may have dropped the platform, then no game matches
+      }
+    }
+    // key=value pairs; a token without '=' continues the previous value, as in "platform=Nintendo 64"
+    List<String[]> pairs = new ArrayList<>();
+    for (String token : arguments.trim().split("\\s+")) {
+      if (token.isEmpty()) {
+        continue;
+      }
+      int equals = token.indexOf('=');
+      if (equals > 0) {
+        pairs.add(new String[] { token.substring(0, equals), token.substring(equals + 1) });
+      } else if (!pairs.isEmpty()) {
+        String[] last = pairs.get(pairs.size() - 1);
+        last[1] = last[1] + " " + token;
+      } else {
+        throw new IllegalArgumentException("Invalid query argument: " + token + "\n" + USAGE);
+      }
+    }
+    for (String[] pair : pairs) {
+      String value = pair[1];
+      switch (pair[0]) {
+        case "platform":
+          query.platforms = new boolean[catalogue.store().platformCount()];
+          for (String name : value.split(",")) {
+            String canonical = catalogue.canonicalPlatform(name.trim());
+            if (canonical == null) {
+              throw new IllegalArgumentException(
+                "Invalid platform: " + name.trim() + ". Please use command 'platforms' to see a list of available platforms"
+              );
+            }
+            query.platforms[catalogue.store().platformIdOf(canonical)] = true;
+          }
+          break;
+        case "meta":
+        case "user":
+          QueryIndex.Field score = QueryIndex.Field.named(pair[0]);
+          String[] scores = splitRange(pair[0], value);
+          query.low[score.ordinal()] = scores[0].isEmpty()
+            ? Double.NEGATIVE_INFINITY
+            : parseScore(pair[0], scores[0]);
+          query.high[score.ordinal()] = scores[1].isEmpty()
+            ? Double.POSITIVE_INFINITY
+            : parseScore(pair[0], scores[1]);
+          break;
+        case "date":
+          String[] dates = splitRange("date", value);
+          int date = QueryIndex.Field.DATE.ordinal();
+          query.low[date] = dates[0].isEmpty() ? Double.NEGATIVE_INFINITY : parseDay(dates[0], false);
+          query.high[date] = dates[1].isEmpty() ? Double.POSITIVE_INFINITY : parseDay(dates[1], true);
+          break;
+        case "title":
+          query.title = value;
+          break;
+        case "sort":
+          String[] spec = value.split(":", 2);
+          QueryIndex.Field field = QueryIndex.Field.named(spec[0]);
+          if (field == null) {
+            throw new IllegalArgumentException("Invalid sort field: " + spec[0] + " (meta, user, date or title)");
+          }
+          query.sort = field;
+          query.descending = field.descendingByDefault;
+          if (spec.length == 2) {
+            if (!spec[1].equals("asc") && !spec[1].equals("desc")) {
+              throw new IllegalArgumentException("Invalid sort direction: " + spec[1] + " (asc or desc)");
+            }
+            query.descending = spec[1].equals("desc");
+          }
+          break;
+        case "limit":
+          try {
+            query.limit = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            query.limit = -1;
+          }
+          if (query.limit < 1 || query.limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Invalid limit: " + value + " (1 to " + MAX_LIMIT + ")");
+          }
+          break;
+        case "cursor":
+          query.cursor = value;
+          break;
+        default:
+          throw new IllegalArgumentException("Invalid query argument: " + pair[0] + "\n" + USAGE);
+      }
+    }
+    return query;
+  }
+
+  Page run(Catalogue catalogue) {
+    QueryIndex index = catalogue.queryIndex();
+    int after = cursor == null ? -1 : decodeCursor(catalogue);
+    byte[] needle = title == null ? null : TitleIndex.needle(title);
+
+    // The smallest candidate list an index gives, all games when no predicate has one
+    int driverSize = index.size();
+    QueryIndex.Field driverRange = null;
+    int[] driverSlice = null; // [from, to) of driverRange's ascending order
+    int[] driverGames = null; // Candidates when a platform set or the title drives
+    boolean titleDrives = false;
+    for (QueryIndex.Field field : RANGE_FIELDS) {
+      if (!Double.isNaN(low[field.ordinal()])) {
+        int[] slice = index.range(field, low[field.ordinal()], high[field.ordinal()]);
+        if (slice[1] - slice[0] < driverSize) {
+          driverSize = slice[1] - slice[0];
+          driverRange = field;
+          driverSlice = slice;
+        }
+      }
+    }
+    if (platforms != null) {
+      int size = 0;
+      for (int id = 0; id < platforms.length; id++) {
+        if (platforms[id]) {
+          size += catalogue.games(catalogue.store().platformName(id)).length;
+        }
+      }
+      if (size < driverSize) {
+        driverSize = size;
+        driverRange = null;
+        driverGames = platformGames(catalogue, size);
+      }
+    }
+    if (needle != null && needle.length >= SHORTEST_INDEXED_TITLE) {
+      int[] matches = catalogue.searchTitles(title, null);
+      if (matches.length <= driverSize) {
+        driverSize = matches.length;
+        driverRange = null;
+        driverGames = matches;
+        titleDrives = true;
+      }
+    }
+
+    // Walking the sort order finds a page in about limit * size / driverSize checks if the matches are spread
+    // evenly, collecting and sorting them costs driverSize
+    boolean walk;
+    if (driverRange != null && driverRange == sort) {
+      walk = true; // The driver's slice is already in sort order
+    } else if (driverRange == null && driverGames == null) {
+      walk = true; // Nothing narrows the search
+    } else {
+      walk = (double) limit * index.size() / Math.max(1, driverSize) < driverSize;
+    }
+    int[] positions = new int[limit + 1];
+    int found = 0;
+    if (walk) {
+      int[] range = driverRange == sort
+        ? index.positions(sort, descending, driverSlice[0], driverSlice[1])
+        : new int[] { 0, index.size() };
+      for (int position = Math.max(range[0], after + 1); position < range[1]; position++) {
+        if (matches(catalogue, index.gameAt(sort, descending, position), needle, false)) {
+          positions[found++] = position;
+          if (found == positions.length) {
+            break;
+          }
+        }
+      }
+    } else {
+      int[] kept = new int[driverSize];
+      int count = 0;
+      for (int i = 0; i < driverSize; i++) {
+        int game = driverGames != null ? driverGames[i] : index.gameAt(driverRange, false, driverSlice[0] + i);
+        if (matches(catalogue, game, needle, titleDrives)) {
+          int position = index.position(sort, descending, game);
+          if (position > after) {
+            kept[count++] = position;
+          }
+        }
+      }
+      Arrays.sort(kept, 0, count);
+      found = Math.min(count, positions.length);
+      System.arraycopy(kept, 0, positions, 0, found);
+    }
+
+    int[] games = new int[Math.min(found, limit)];
+    for (int i = 0; i < games.length; i++) {
+      games[i] = index.gameAt(sort, descending, positions[i]);
+    }
+    String next = found > limit ? encodeCursor(catalogue, positions[limit - 1]) : null;
+    return new Page(games, next);
+  }
+
+  // Whether the game passes every predicate; the title is skipped when its index already picked the game
+  private boolean matches(Catalogue catalogue, int game, byte[] needle, boolean titleChecked) {
+    if (platforms != null && !platforms[catalogue.store().platformId(game)]) {
+      return false;
+    }
+    QueryIndex index = catalogue.queryIndex();
+    for (QueryIndex.Field field : RANGE_FIELDS) {
+      double from = low[field.ordinal()];
+      if (Double.isNaN(from)) {
+        continue;
+      }
+      if (!index.hasValue(field, game)) {
+        return false;
+      }
+      double value = index.value(field, game);
+      if (value < from || value > high[field.ordinal()]) {
+        return false;
+      }
+    }
+    return needle == null || titleChecked || catalogue.titleContains(game, needle);
+  }
+
+  // The games on the allowed platforms, partition after partition
+  private int[] platformGames(Catalogue catalogue, int size) {
+    int[] games = new int[size];
+    int filled = 0;
+    for (int id = 0; id < platforms.length; id++) {
+      if (platforms[id]) {
+        int[] partition = catalogue.games(catalogue.store().platformName(id));
+        System.arraycopy(partition, 0, games, filled, partition.length);
+        filled += partition.length;
+      }
+    }
+    return games;
+  }
+
+  // The cursor names the catalogue, the query and the sort position of the last game sent; base64 so it is opaque
+  private String encodeCursor(Catalogue catalogue, int position) {
+    ByteBuffer bytes = ByteBuffer.allocate(12)
+      .putInt(catalogue.stamp())
+      .putInt(fingerprint())
+      .putInt(position);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+  }
+
+  private int decodeCursor(Catalogue catalogue) {
+    ByteBuffer bytes;
+    try {
+      bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+    if (bytes.remaining() != 12) {
+      throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+    if (bytes.getInt() != catalogue.stamp()) {
+      throw new IllegalArgumentException("The game database was reloaded since this cursor, please run the query again");
+    }
+    if (bytes.getInt() != fingerprint()) {
+      throw new IllegalArgumentException("The cursor belongs to a different query");
+    }
+    return bytes.getInt();
+  }
+
+  // Hash of everything that decides which games match and in what order; the limit may change between pages
+  private int fingerprint() {
+    return Objects.hash(
+      Arrays.hashCode(platforms),
+      Arrays.hashCode(low),
+      Arrays.hashCode(high),
+      title == null ? null : title.toLowerCase(Locale.ROOT),
+      sort,
+      descending
+    );
+  }
+
+  private static String[] splitRange(String name, String value) {
+    int dots = value.indexOf("..");
+    if (dots < 0) {
+      return new String[] { value, value }; // A single value matches exactly
+    }
+    String[] ends = { value.substring(0, dots).trim(), value.substring(dots + 2).trim() };
+    if (ends[0].isEmpty() && ends[1].isEmpty()) {
+      throw new IllegalArgumentException("Invalid " + name + " range: " + value);
+    }
+    return ends;
+  }
+
+  private static double parseScore(String name, String text) {
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + name + " score: " + text);
+    }
+  }
+
+  // Days since 1970-01-01 of the first day of yyyy, yyyy-mm or yyyy-mm-dd, or of the last day if 'end' is set
+  private static int parseDay(String text, boolean end) {
+    try {
+      String[] parts = text.split("-");
+      int year = Integer.parseInt(parts[0]);
+      LocalDate date = switch (parts.length) {
+        case 1 -> end ? LocalDate.of(year, 12, 31) : LocalDate.of(year, 1, 1);
+        case 2 -> {
+          YearMonth month = YearMonth.of(year, Integer.parseInt(parts[1]));
+          yield end ? month.atEndOfMonth() : month.atDay(1);
+        }
+        case 3 -> LocalDate.of(year, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        default -> throw new DateTimeException(text);
+      };
+      return (int) date.toEpochDay();
+    } catch (NumberFormatException | DateTimeException e) {
+      throw new IllegalArgumentException("Invalid date: " + text + " (yyyy, yyyy-mm or yyyy-mm-dd)");
+    }
+  }
+}
@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+// Picks random games straight from a platform partition's index array, in time proportional to the sample
+final class GameSampler {
+
+  private static final int EMPTY = -1; // Free slot in the open-addressing set used by sampleUnique
+
+  private GameSampler() {}
+
+  // 'count' games drawn independently, so the same game can come up more than once
+  static int[] sample(int[] games, int count, RandomGenerator random) {
+    int[] picks = new int[count];
+    for (int i = 0; i < count; i++) {
+      picks[i] = games[random.nextInt(games.length)];
+    }
+    return picks;
+  }
+
+  // min(count, games.length) different games in random order, using Floyd's algorithm over positions
+  static int[] sampleUnique(int[] games, int count, RandomGenerator random) {
+    int n = games.length;
+    int k = Math.min(count, n);
+    int[] positions = new int[k];
+    // Positions chosen so far, in an open-addressing table at most half full
+    int[] chosen = new int[Integer.highestOneBit(Math.max(1, k) * 2) * 2];
+    Arrays.fill(chosen, EMPTY);
+    int mask = chosen.length - 1;
+    int size = 0;
+    for (int j = n - k; j < n; j++) {
+      int position = random.nextInt(j + 1);
+      if (!add(chosen, mask, position)) {
+        // Already chosen, so take j instead, which no earlier round could have picked
+        position = j;
+        add(chosen, mask, j);
+      }
+      positions[size++] = position;
+    }
+    // Floyd's picks are a uniform set but not in uniform order, so shuffle them
+    for (int i = k - 1; i > 0; i--) {
+      int swap = random.nextInt(i + 1);
+      int position = positions[i];
+      positions[i] = positions[swap];
+      positions[swap] = position;
+    }
+    int[] picks = new int[k];
+    for (int i = 0; i < k; i++) {
+      picks[i] = games[positions[i]];
+    }
+    return picks;
+  }
+
+  // Adds the value to the set, false if it was already there
+  private static boolean add(int[] table, int mask, int value) {
+    int slot = (value * 0x9E3779B9) >>> 1 & mask;
+    while (table[slot] != EMPTY) {
+      if (table[slot] == value) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = value;
+    return true;
+  }
+}
@@ -0,0 +1,411 @@
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.*;
+
+// Columnar storage for the game database: one array per field instead of a String[] per game
+final class GameStore {
+
+  static final int NO_DATE = Integer.MIN_VALUE; // Release day of a game whose date is not "Month d, yyyy"
+
+  // How a score column value was written in the CSV, so it can be printed back exactly
+  private static final byte TBD = 0; // "tbd", stored as NaN
+  private static final byte WHOLE = 1; // A whole number such as "85"
+  private static final byte DECIMAL = 2; // What Double.toString prints, such as "7.5"
+  private static final byte VERBATIM = 3; // Anything else, kept as text in the column's verbatim map
+
+  private static final String[] MONTHS = {
+    "January",
+    "February",
+    "March",
+    "April",
+    "May",
+    "June",
+    "July",
+    "August",
+    "September",
+    "October",
+    "November",
+    "December",
+  };
+
+  private final PackedStrings titles;
+  private final PackedStrings summaries;
+
+  // Platforms are a small dictionary; a game stores the id of its platform
+  private final short[] platformOf;
+  private final String[] platformNames; // Spelling from the CSV, the first one seen when names only differ in case
+  private final Map<String, Integer> platformIds = new HashMap<>(); // Canonical name -> id
+  private final Map<String, Integer> platformIdsIgnoreCase = new HashMap<>(); // Lowercased name -> id
+
+  private final int[] releaseDays; // Days since 1970-01-01, NO_DATE if the text did not parse
+  private final Map<Integer, String> verbatimReleaseDates = new HashMap<>();
+
+  private final double[] metascores; // NaN for "tbd"
+  private final double[] userscores; // NaN for "tbd"
+  private final byte[] metascoreStyles;
+  private final byte[] userscoreStyles;
+  private final Map<Integer, String> verbatimMetascores = new HashMap<>();
+  private final Map<Integer, String> verbatimUserscores = new HashMap<>();
+
+  GameStore(Collection<String[]> rows, boolean offHeapText) {
+    int size = rows.size();
+    String[] titleColumn = new String[size];
+    String[] summaryColumn = new String[size];
+    platformOf = new short[size];
+    releaseDays = new int[size];
+    metascores = new double[size];
+    userscores = new double[size];
+    metascoreStyles = new byte[size];
+    userscoreStyles = new byte[size];
+    List<String> names = new ArrayList<>();
+
+    int i = 0;
+    for (String[] row : rows) {
+      titleColumn[i] = row[0];
+      summaryColumn[i] = row[3];
+      platformOf[i] = (short) platformId(row[1], names);
+      releaseDays[i] = parseReleaseDay(row[2]);
+      if (releaseDays[i] == NO_DATE) {
+        verbatimReleaseDates.put(i, row[2]);
+      }
+      metascores[i] = parseScore(row[4]);
+      metascoreStyles[i] = scoreStyle(row[4], metascores[i]);
+      if (metascoreStyles[i] == VERBATIM) {
+        verbatimMetascores.put(i, row[4]);
+      }
+      userscores[i] = parseScore(row[5]);
+      userscoreStyles[i] = scoreStyle(row[5], userscores[i]);
+      if (userscoreStyles[i] == VERBATIM) {
+        verbatimUserscores.put(i, row[5]);
+      }
+      i++;
+    }
+    platformNames = names.toArray(new String[0]);
+    titles = new PackedStrings(titleColumn, offHeapText);
+    summaries = new PackedStrings(summaryColumn, offHeapText);
+  }
+
+  // Reads the columns back from a snapshot written by writeTo
+  GameStore(Snapshot.Reader in) {
+    titles = new PackedStrings(in);
+    summaries = new PackedStrings(in);
+    platformNames = new String[in.readInt()];
+    for (int id = 0; id < platformNames.length; id++) {
+      platformNames[id] = in.readString();
+      platformIds.put(platformNames[id], id);
+      platformIdsIgnoreCase.putIfAbsent(
+        platformNames[id].toLowerCase(Locale.ROOT),
+        id
+      );
+    }
+    platformOf = in.readShorts();
+    releaseDays = in.readInts();
+    readVerbatim(in, verbatimReleaseDates);
+    metascores = in.readDoubles();
+    userscores = in.readDoubles();
+    metascoreStyles = in.readBytes();
+    userscoreStyles = in.readBytes();
+    readVerbatim(in, verbatimMetascores);
+    readVerbatim(in, verbatimUserscores);
+  }
+
+  void writeTo(Snapshot.Writer out) throws IOException {
+    titles.writeTo(out);
+    summaries.writeTo(out);
+    out.writeInt(platformNames.length);
+    for (String name : platformNames) {
+      out.writeString(name);
+    }
+    out.writeShorts(platformOf);
+    out.writeInts(releaseDays);
+    writeVerbatim(out, verbatimReleaseDates);
+    out.writeDoubles(metascores);
+    out.writeDoubles(userscores);
+    out.writeBytes(metascoreStyles);
+    out.writeBytes(userscoreStyles);
+    writeVerbatim(out, verbatimMetascores);
+    writeVerbatim(out, verbatimUserscores);
+  }
+
+  private static void writeVerbatim(
+    Snapshot.Writer out,
+    Map<Integer, String> values
+  ) throws IOException {
+    out.writeInt(values.size());
+    for (Map.Entry<Integer, String> entry : values.entrySet()) {
+      out.writeInt(entry.getKey());
+      out.writeString(entry.getValue());
+    }
+  }
+
+  private static void readVerbatim(
+    Snapshot.Reader in,
+    Map<Integer, String> values
+  ) {
+    for (int n = in.readInt(); n > 0; n--) {
+      int game = in.readInt();
+      values.put(game, in.readString());
+    }
+  }
+
+  int size() {
+    return platformOf.length;
+  }
+
+  String title(int game) {
+    return titles.get(game);
+  }
+
+  String summary(int game) {
+    return summaries.get(game);
+  }
+
+  int platformId(int game) {
+    return platformOf[game];
+  }
+
+  String platform(int game) {
+    return platformNames[platformOf[game]];
+  }
+
+  int platformCount() {
+    return platformNames.length;
+  }
+
+  String platformName(int id) {
+    return platformNames[id];
+  }
+
+  // Id of a canonical platform name, or -1
+  int platformIdOf(String canonicalName) {
+    Integer id = platformIds.get(canonicalName);
+    return id == null ? -1 : id;
+  }
+
+  // Id of a platform name given in any case, or -1
+  int platformIdIgnoreCase(String name) {
+    Integer id = platformIdsIgnoreCase.get(name.toLowerCase(Locale.ROOT));
+    return id == null ? -1 : id;
+  }
+
+  int releaseDay(int game) {
+    return releaseDays[game];
+  }
+
+  // The release date as it was written in the CSV
+  String releaseDate(int game) {
+    if (releaseDays[game] == NO_DATE) {
+      return verbatimReleaseDates.get(game);
+    }
+    LocalDate date = LocalDate.ofEpochDay(releaseDays[game]);
+    return (
+      MONTHS[date.getMonthValue() - 1] +
+      " " +
+      date.getDayOfMonth() +
+      ", " +
+      date.getYear()
+    );
+  }
+
+  double metascore(int game) {
+    return metascores[game];
+  }
+
+  double userscore(int game) {
+    return userscores[game];
+  }
+
+  // The metascore as it was written in the CSV
+  String metascoreText(int game) {
+    return scoreText(
+      metascores[game],
+      metascoreStyles[game],
+      verbatimMetascores,
+      game
+    );
+  }
+
+  // The userscore as it was written in the CSV
+  String userscoreText(int game) {
+    return scoreText(
+      userscores[game],
+      userscoreStyles[game],
+      verbatimUserscores,
+      game
+    );
+  }
+
+  // The game's fields in CSV column order, as they were written in the CSV
+  String[] row(int game) {
+    return new String[] {
+      title(game),
+      platform(game),
+      releaseDate(game),
+      summary(game),
+      metascoreText(game),
+      userscoreText(game),
+    };
+  }
+
+  PackedStrings titles() {
+    return titles;
+  }
+
+  // Approximate heap (and off-heap) bytes held by the columns
+  long memoryBytes() {
+    long bytes = titles.memoryBytes() + summaries.memoryBytes();
+    bytes += (long) platformOf.length * Short.BYTES;
+    bytes += (long) releaseDays.length * Integer.BYTES;
+    bytes += (long) metascores.length * Double.BYTES * 2;
+    bytes += (long) metascoreStyles.length * 2;
+    int verbatim =
+      verbatimReleaseDates.size() +
+      verbatimMetascores.size() +
+      verbatimUserscores.size();
+    return bytes + verbatim * 96L; // Map node, boxed key and a short string per verbatim value
+  }
+
+  // One line comparing the columns with what the same rows cost as a HashMap of String[], printed at startup
+  String footprintReport(long rowLayoutBytes) {
+    return (
+      "columnar store " +
+      memoryBytes() / 1024 +
+      " KB" +
+      (titles.isOffHeap() ? " (text off-heap)" : "") +
+      ", HashMap<String, String[]> layout about " +
+      rowLayoutBytes / 1024 +
+      " KB"
+    );
+  }
+
+  // Estimated heap of rows kept as a HashMap of String[] keyed by title, assuming compressed references
+  static long estimateRowLayoutBytes(Collection<String[]> rows) {
+    long bytes = 16 + align(16 + 4L * tableSize(rows.size()));
+    for (String[] row : rows) {
+      bytes += 32; // HashMap.Node
+      bytes += align(16 + 4L * row.length); // String[]
+      for (String value : row) {
+        bytes += 24 + align(16 + (long) value.length() * charBytes(value));
+      }
+    }
+    return bytes;
+  }
+
+  // Compact strings use one byte per char when every char fits in latin-1
+  private static int charBytes(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) > 0xFF) {
+        return 2;
+      }
+    }
+    return 1;
+  }
+
+  private static long tableSize(int entries) {
+    return Integer.highestOneBit(Math.max(1, (int) (entries / 0.75f)) * 2 - 1);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  // Platforms that only differ in case share one id, the first spelling seen is the canonical one
+  private int platformId(String platform, List<String> names) {
+    Integer id = platformIds.get(platform);
+    if (id == null) {
+      id = platformIdsIgnoreCase.get(platform.toLowerCase(Locale.ROOT));
+    }
+    if (id == null) {
+      if (names.size() > Short.MAX_VALUE) {
+        throw new IllegalStateException("Too many platforms: " + names.size());
+      }
+      id = names.size();
+      names.add(platform);
+      platformIds.put(platform, id);
+      platformIdsIgnoreCase.put(platform.toLowerCase(Locale.ROOT), id);
+    }
+    return id;
+  }
+
+  // Parses dates written like "September 1, 1998"; anything else gives NO_DATE
+  private static int parseReleaseDay(String text) {
+    int space = text.indexOf(' ');
+    int comma = text.indexOf(", ");
+    if (space < 0 || comma < space) {
+      return NO_DATE;
+    }
+    int month = monthNumber(text.substring(0, space));
+    try {
+      int day = Integer.parseInt(text.substring(space + 1, comma));
+      int year = Integer.parseInt(text.substring(comma + 2));
+      int epochDay = (int) LocalDate.of(year, month, day).toEpochDay();
+      // Only keep the number if printing it gives back the same text, "September 01, 1998" stays verbatim
+      if (
+        !text.equals(MONTHS[month - 1] + " " + day + ", " + year) ||
+        epochDay == NO_DATE
+      ) {
+        return NO_DATE;
+      }
+      return epochDay;
+    } catch (NumberFormatException | DateTimeException e) {
+      return NO_DATE;
+    }
+  }
+
+  // 1 for "January" up to 12 for "December", 0 for anything else
+  private static int monthNumber(String name) {
+    for (int i = 0; i < MONTHS.length; i++) {
+      if (MONTHS[i].equals(name)) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  // Parses a score column, "tbd" and anything else that is not a number become NaN
+  private static double parseScore(String score) {
+    if (score == null || score.equalsIgnoreCase("tbd")) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(score);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  private static byte scoreStyle(String text, double value) {
+    if (text.equals("tbd")) {
+      return TBD;
+    }
+    if (Double.isNaN(value)) {
+      return VERBATIM;
+    }
+    if (value == (long) value && text.equals(Long.toString((long) value))) {
+      return WHOLE;
+    }
+    if (text.equals(Double.toString(value))) {
+      return DECIMAL;
+    }
+    return VERBATIM;
+  }
+
+  private static String scoreText(
+    double value,
+    byte style,
+    Map<Integer, String> verbatim,
+    int game
+  ) {
+    switch (style) {
+      case TBD:
+        return "tbd";
+      case WHOLE:
+        return Long.toString((long) value);
+      case DECIMAL:
+        return Double.toString(value);
+      default:
+        return verbatim.get(game);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Score summaries per platform or per release year for 'stats-by'
+//
+// The games are reduced in parallel on the common fork-join pool: each task folds a slice of the games into
+// per-group counts and sums in primitive arrays, reading the score columns the store parsed at load time, and the
+// slices are merged in order. Nothing is sorted for the median and percentiles: the query index already orders
+// every game by each score, so one walk along that order meets each group's scores in sorted order and picks out
+// the ones at the percentile positions.
+final class GroupStats {
+
+  private static final int SLICE = 4096; // Games each task folds
+  private static final double[] PERCENTILES = { 0.10, 0.25, 0.50, 0.75, 0.90 };
+
+  enum Dimension {
+    PLATFORM("platform"),
+    YEAR("year");
+
+    final String name;
+
+    Dimension(String name) {
+      this.name = name;
+    }
+
+    static Dimension named(String name) {
+      for (Dimension dimension : values()) {
+        if (dimension.name.equals(name)) {
+          return dimension;
+        }
+      }
+      return null;
+    }
+  }
+
+  // One score column over a group: how many games have a score and how many are "tbd", the mean and the
+  // PERCENTILES of the scores; the statistics are NaN when no game has a score
+  record Summary(int scored, int tbd, double mean, double[] percentiles) {
+    double median() {
+      return percentiles[2];
+    }
+  }
+
+  record Group(String name, int games, Summary metascore, Summary userscore) {}
+
+  private GroupStats() {}
+
+  // The groups the games fall into, platforms in catalogue order and years oldest first with games without a
+  // release date last; groups without games are left out
+  static List<Group> compute(GameStore store, QueryIndex index, int[] games, Dimension by) {
+    int firstYear = 0;
+    int groupCount = store.platformCount();
+    if (by == Dimension.YEAR) {
+      int firstDay = Integer.MAX_VALUE;
+      int lastDay = Integer.MIN_VALUE;
+      for (int game : games) {
+        int day = store.releaseDay(game);
+        if (day != GameStore.NO_DATE) {
+          firstDay = Math.min(firstDay, day);
+          lastDay = Math.max(lastDay, day);
+        }
+      }
+      firstYear = firstDay > lastDay ? 0 : LocalDate.ofEpochDay(firstDay).getYear();
+      int years = firstDay > lastDay ? 0 : LocalDate.ofEpochDay(lastDay).getYear() - firstYear + 1;
+      groupCount = years + 1; // The last group is the games without a date
+    }
+
+    // Each game's group, -1 for games outside 'games'; every task fills in the games of its own slice
+    int[] groupOf = new int[store.size()];
+    Arrays.fill(groupOf, -1);
+    List<ForkJoinTask<Accumulator>> slices = new ArrayList<>();
+    for (int from = 0; from < games.length; from += SLICE) {
+      int sliceFrom = from;
+      int sliceTo = Math.min(from + SLICE, games.length);
+      int yearBase = firstYear;
+      int count = groupCount;
+      slices.add(
+        ForkJoinPool.commonPool()
+          .submit(() -> fold(store, games, sliceFrom, sliceTo, by, yearBase, count, groupOf))
+      );
+    }
+    Accumulator total = new Accumulator(groupCount);
+    for (ForkJoinTask<Accumulator> slice : slices) {
+      total.merge(slice.join());
+    }
+
+    // One walk per score column, the two side by side
+    ForkJoinTask<double[][]> metaWalk = ForkJoinPool.commonPool()
+      .submit(() -> percentiles(index, QueryIndex.Field.META, groupOf, total.metaScored));
+    double[][] userPercentiles = percentiles(index, QueryIndex.Field.USER, groupOf, total.userScored);
+    double[][] metaPercentiles = metaWalk.join();
+
+    List<Group> groups = new ArrayList<>();
+    for (int group = 0; group < groupCount; group++) {
+      if (total.games[group] == 0) {
+        continue;
+      }
+      String name;
+      if (by == Dimension.PLATFORM) {
+        name = store.platformName(group);
+      } else {
+        name = group == groupCount - 1 ? "unknown date" : Integer.toString(firstYear + group);
+      }
+      int members = total.games[group];
+      groups.add(
+        new Group(
+          name,
+          members,
+          summary(members, total.metaScored[group], total.metaSums[group], metaPercentiles[group]),
+          summary(members, total.userScored[group], total.userSums[group], userPercentiles[group])
+        )
+      );
+    }
+    return Collections.unmodifiableList(groups);
+  }
+
+  private static Summary summary(int games, int scored, double sum, double[] percentiles) {
+    return new Summary(scored, games - scored, scored == 0 ? Double.NaN : sum / scored, percentiles);
+  }
+
+  // Adds games[from..to) to a new accumulator and records their groups in groupOf
+  private static Accumulator fold(
+    GameStore store,
+    int[] games,
+    int from,
+    int to,
+    Dimension by,
+    int firstYear,
+    int groupCount,
+    int[] groupOf
+  ) {
+    Accumulator accumulator = new Accumulator(groupCount);
+    for (int i = from; i < to; i++) {
+      int game = games[i];
+      int group;
+      if (by == Dimension.PLATFORM) {
+        group = store.platformId(game);
+      } else {
+        int day = store.releaseDay(game);
+        group = day == GameStore.NO_DATE ? groupCount - 1 : LocalDate.ofEpochDay(day).getYear() - firstYear;
+      }
+      groupOf[game] = group;
+      accumulator.add(group, store.metascore(game), store.userscore(game));
+    }
+    return accumulator;
+  }
+
+  // The PERCENTILES of the field per group, given how many games of each group have a value, NaN for groups
+  // without any. Walking the field's ascending order, the k-th game met from a group has the group's k-th
+  // smallest value, so each percentile is read off at its position, interpolating between the two values closest
+  // to it: the median of an even number of scores is the mean of the middle two.
+  private static double[][] percentiles(
+    QueryIndex index,
+    QueryIndex.Field field,
+    int[] groupOf,
+    int[] scored
+  ) {
+    int groupCount = scored.length;
+    double[][] positions = new double[groupCount][PERCENTILES.length];
+    double[][] lower = new double[groupCount][PERCENTILES.length]; // The values at and just after each position
+    double[][] upper = new double[groupCount][PERCENTILES.length];
+    for (int group = 0; group < groupCount; group++) {
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        positions[group][p] = PERCENTILES[p] * (scored[group] - 1);
+      }
+    }
+    int[] seen = new int[groupCount];
+    int end = index.valueCount(field);
+    for (int i = 0; i < end; i++) {
+      int game = index.gameAt(field, false, i);
+      int group = groupOf[game];
+      if (group < 0) {
+        continue;
+      }
+      int k = seen[group]++;
+      double value = index.value(field, game);
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        int below = (int) positions[group][p];
+        if (k == below) {
+          lower[group][p] = value;
+          upper[group][p] = value; // Unless a next value follows
+        } else if (k == below + 1) {
+          upper[group][p] = value;
+        }
+      }
+    }
+    double[][] percentiles = new double[groupCount][PERCENTILES.length];
+    for (int group = 0; group < groupCount; group++) {
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        double fraction = positions[group][p] - (int) positions[group][p];
+        percentiles[group][p] = scored[group] == 0
+          ? Double.NaN
+          : lower[group][p] + fraction * (upper[group][p] - lower[group][p]);
+      }
+    }
+    return percentiles;
+  }
+
+  // Per-group game counts and score sums of part of the games; "tbd" (NaN) scores are not counted as scored
+  private static final class Accumulator {
+
+    private final int[] games;
+    private final int[] metaScored;
+    private final int[] userScored;
+    private final double[] metaSums;
+    private final double[] userSums;
+
+    Accumulator(int groupCount) {
+      games = new int[groupCount];
+      metaScored = new int[groupCount];
+      userScored = new int[groupCount];
+      metaSums = new double[groupCount];
+      userSums = new double[groupCount];
+    }
+
+    void add(int group, double metascore, double userscore) {
+      games[group]++;
+      if (!Double.isNaN(metascore)) {
+        metaScored[group]++;
+        metaSums[group] += metascore;
+      }
+      if (!Double.isNaN(userscore)) {
+        userScored[group]++;
+        userSums[group] += userscore;
+      }
+    }
+
+    // Adds the other accumulator's games to this one's
+    void merge(Accumulator other) {
+      for (int group = 0; group < games.length; group++) {
+        games[group] += other.games[group];
+        metaScored[group] += other.metaScored[group];
+        userScored[group] += other.userScored[group];
+        metaSums[group] += other.metaSums[group];
+        userSums[group] += other.userSums[group];
+      }
+    }
+  }
+}
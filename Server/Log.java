@@ -0,0 +1,193 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Leveled logging that never makes a request thread wait for the console
+//
+// Messages go into a bounded ring buffer and a background thread writes them to System.out in batches. The
+// ring is the array-based queue from Dmitry Vyukov: each slot has a sequence number that says whether it is
+// free or filled for a given lap, so producers claim slots with one CAS and never lock. When the ring is full
+// the message is dropped and counted instead of blocking, and the writer reports how many were lost.
+final class Log {
+
+  enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+  }
+
+  // Lowest level written, override with -Dserver.logLevel=DEBUG|INFO|WARN|ERROR
+  private static final Level LEVEL = level(System.getProperty("server.logLevel", "INFO"));
+  // Messages the ring holds before new ones are dropped, rounded up to a power of two; -Dserver.logBuffer=<n>
+  private static final int CAPACITY = Integer.highestOneBit(
+    Math.max(2, Integer.getInteger("server.logBuffer", 8192) - 1)
+  ) << 1;
+  private static final long IDLE_PARK_NANOS = 100_000_000; // Longest the writer sleeps when it may have missed a wakeup
+
+  // A misspelt level falls back to INFO rather than failing the class, and with it the server, at startup
+  private static Level level(String name) {
+    try {
+      return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      System.err.println("WARNING: Unknown -Dserver.logLevel=" + name + ", logging at INFO (DEBUG, INFO, WARN or ERROR)");
+      return Level.INFO;
+    }
+  }
+
+  private record Message(long millis, Level level, String text, Throwable error) {}
+
+  private static final int MASK = CAPACITY - 1;
+  private static final Message[] slots = new Message[CAPACITY];
+  private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY); // Slot i is free for lap position p when it holds p
+  private static final AtomicLong tail = new AtomicLong(); // Next position producers claim
+  private static long head; // Next position the writer reads, only used under the class lock
+  private static final LongAdder dropped = new LongAdder();
+  private static volatile boolean writerSleeping;
+  private static final Thread writer;
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) {
+      sequences.set(i, i);
+    }
+    writer = Thread.ofPlatform().name("log-writer").daemon().unstarted(Log::drainForever);
+    writer.start();
+    // Whatever is still in the ring when the JVM exits is written by the hook
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+  }
+
+  private Log() {}
+
+  static boolean isDebugEnabled() {
+    return LEVEL == Level.DEBUG;
+  }
+
+  static void debug(String message) {
+    log(Level.DEBUG, message, null);
+  }
+
+  static void info(String message) {
+    log(Level.INFO, message, null);
+  }
+
+  static void warn(String message) {
+    log(Level.WARN, message, null);
+  }
+
+  static void error(String message, Throwable error) {
+    log(Level.ERROR, message, error);
+  }
+
+  // Messages lost because the ring was full
+  static long dropped() {
+    return dropped.sum();
+  }
+
+  private static void log(Level level, String text, Throwable error) {
+    if (level.compareTo(LEVEL) < 0) {
+      return;
+    }
+    if (!offer(new Message(System.currentTimeMillis(), level, text, error))) {
+      dropped.increment();
+      return;
+    }
+    if (writerSleeping) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  private static boolean offer(Message message) {
+    long position = tail.get();
+    while (true) {
+      int slot = (int) position & MASK;
+      long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots[slot] = message;
+          sequences.set(slot, position + 1); // Publishes the message to the writer
+          return true;
+        }
+        position = tail.get(); // Another producer took the slot
+      } else if (sequence < position) {
+        return false; // The writer has not freed this slot since the last lap, so the ring is full
+      } else {
+        position = tail.get(); // Fell behind other producers, start from the current tail
+      }
+    }
+  }
+
+  private static synchronized boolean isEmpty() {
+    return sequences.get((int) head & MASK) != head + 1;
+  }
+
+  // Next message for the writer, or null if the ring is empty
+  private static Message poll() {
+    int slot = (int) head & MASK;
+    if (sequences.get(slot) != head + 1) {
+      return null;
+    }
+    Message message = slots[slot];
+    slots[slot] = null;
+    sequences.set(slot, head + CAPACITY); // Free for the producers' next lap
+    head++;
+    return message;
+  }
+
+  private static void drainForever() {
+    long reportedDropped = 0;
+    while (true) {
+      if (!drain()) {
+        long lost = dropped.sum();
+        if (lost != reportedDropped) {
+          System.out.println(
+            format(
+              System.currentTimeMillis(),
+              Level.WARN,
+              "SERVER: Dropped " + (lost - reportedDropped) + " log messages, the log buffer was full"
+            )
+          );
+          reportedDropped = lost;
+        }
+        writerSleeping = true;
+        // A producer that filled the ring just before the flag was set did not unpark us, so look once more
+        if (isEmpty()) {
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        writerSleeping = false;
+      }
+    }
+  }
+
+  // Writes everything in the ring as one batch; false if there was nothing to write
+  private static synchronized boolean drain() {
+    Message message = poll();
+    if (message == null) {
+      return false;
+    }
+    StringBuilder batch = new StringBuilder();
+    do {
+      batch
+        .append(format(message.millis, message.level, message.text))
+        .append(System.lineSeparator());
+      if (message.error != null) {
+        StringWriter trace = new StringWriter();
+        message.error.printStackTrace(new PrintWriter(trace));
+        batch.append(trace);
+      }
+    } while (batch.length() < 1 << 16 && (message = poll()) != null); // Large backlogs go out in several prints
+    PrintStream out = System.out; // Looked up each time, so a stream set with System.setOut is honoured
+    out.print(batch);
+    out.flush();
+    return true;
+  }
+
+  private static String format(long millis, Level level, String text) {
+    return Instant.ofEpochMilli(millis) + " " + String.format("%-5s", level) + " " + text;
+  }
+}
@@ -0,0 +1,428 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking front end for Server: a few selector loops share all connections instead of one thread per socket
+//
+// Requests are answered on the loop thread that read them, so a slow command (a large 'random', a 'search' that
+// matches most titles, the first 'stats-by' or 'query' on a catalogue) delays every other connection on the same
+// loop until it is done; -Dserver.nioLoops spreads connections over more loops. A client that pipelines requests
+// faster than it reads the responses is not read from while MAX_PENDING_BYTES of its responses are unsent: the
+// commands already read but not yet answered wait in the connection and are framed once the queue drains.
+class NioFrontEnd {
+
+  private static final int READ_BUFFER_SIZE = 16 * 1024; // Size of the direct read buffer owned by each loop
+  private static final int MAX_LINE_LENGTH = Server.MAX_REQUEST_BYTES; // Longest command we accept before dropping the client
+  private static final int MAX_PENDING_BYTES = 1 << 20; // Stop answering a client that has this many unsent bytes
+  private static final int MAX_GATHER = 64; // Most queued buffers sent by one gather write
+
+  private final Server server;
+  private final int port;
+  private final int maxSessions;
+  private final EventLoop[] loops;
+  private final AtomicInteger openSessions = new AtomicInteger();
+
+  NioFrontEnd(Server server, int port, int loopCount, int maxSessions) {
+    this.server = server;
+    this.port = port;
+    this.maxSessions = maxSessions;
+    this.loops = new EventLoop[loopCount];
+  }
+
+  public void start() throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+      Thread thread = new Thread(loops[i], "nio-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port));
+      Log.info(
+        "Server started on port " +
+        port +
+        " (NIO, " +
+        loops.length +
+        " selector loops)"
+      );
+      // The acceptor blocks on accept and hands new channels to the loops round robin
+      int next = 0;
+      while (true) {
+        SocketChannel channel = serverChannel.accept();
+        if (openSessions.incrementAndGet() > maxSessions) {
+          openSessions.decrementAndGet();
+          Server.refuse(channel, server.stats());
+          continue;
+        }
+        Log.info(
+          "SERVER: Accepted connection from " + channel.getRemoteAddress()
+        );
+        loops[next].register(channel);
+        next = (next + 1) % loops.length;
+      }
+    }
+  }
+
+  // Per-connection state: the session, the bytes of the line being framed and the response bytes not yet written
+  private static class Connection {
+
+    private final Server.Session session;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>(); // Views of pre-encoded data are queued uncopied
+    private long pendingBytes; // Bytes left in outbound
+    private ResponseWriter out;
+    private byte[] line = new byte[128];
+    private int lineLength;
+    // Bytes read but not framed yet because the responses reached MAX_PENDING_BYTES, null when there are none; at
+    // most one read's worth, since the socket is not read again until they are handled
+    private ByteBuffer unread;
+    // System.nanoTime values for ConnectionReaper.overdue, 0 when there is none
+    private long lastActivity = System.nanoTime();
+    private long requestStarted; // When the first bytes of the partly read request arrived
+    private long writeStalledSince; // When the client last took some of its queued response, while some is left
+
+    Connection(Server.Session session) {
+      this.session = session;
+    }
+
+    private void appendToLine(byte b) {
+      if (lineLength == line.length) {
+        line = Arrays.copyOf(line, line.length * 2);
+      }
+      line[lineLength++] = b;
+    }
+
+    // Copies up to 'wanted' bytes of the buffer onto the line in one go
+    private void appendToLine(ByteBuffer buffer, int wanted) {
+      int n = Math.min(wanted, buffer.remaining());
+      if (lineLength + n > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+      }
+      buffer.get(line, lineLength, n);
+      lineLength += n;
+    }
+  }
+
+  private class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(
+      READ_BUFFER_SIZE
+    );
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // Reused by every gather write of this loop
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+      newChannels.add(channel);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      long nextCheck = System.nanoTime();
+      while (true) {
+        try {
+          selector.select(ConnectionReaper.CHECK_INTERVAL_MILLIS);
+          registerNewChannels();
+          long now = System.nanoTime();
+          if (now - nextCheck >= 0) {
+            reapStalledConnections(now);
+            nextCheck = now + ConnectionReaper.CHECK_INTERVAL_MILLIS * 1_000_000;
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                read(key);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key);
+                resumeFraming(key);
+              }
+            } catch (IOException e) {
+              close(key);
+            } catch (RuntimeException | Error e) {
+              // Whatever went wrong with this connection, the loop carries on serving the others
+              Log.error("SERVER: Dropping connection after an unexpected failure", e);
+              close(key);
+            }
+          }
+        } catch (IOException | RuntimeException e) {
+          Log.error("SERVER: Selector loop failed", e);
+        }
+      }
+    }
+
+    // Closes this loop's connections that are idle or too slow, as the reaper does for blocking connections
+    private void reapStalledConnections(long now) {
+      for (SelectionKey key : selector.keys()) {
+        if (!key.isValid()) {
+          continue;
+        }
+        Connection connection = (Connection) key.attachment();
+        String reason = ConnectionReaper.overdue(
+          now,
+          connection.outbound.isEmpty(), // Requests are answered on this thread, so there is none in progress
+          connection.lastActivity,
+          connection.lineLength == 0 ? 0 : connection.requestStarted,
+          connection.writeStalledSince
+        );
+        if (reason != null) {
+          Log.info(
+            "SERVER: Closing connection from " +
+            ((SocketChannel) key.channel()).socket().getInetAddress() +
+            ", it " +
+            reason
+          );
+          server.stats().connectionReaped();
+          close(key);
+        }
+      }
+    }
+
+    private void registerNewChannels() throws IOException {
+      SocketChannel channel;
+      while ((channel = newChannels.poll()) != null) {
+        channel.configureBlocking(false);
+        InetAddress address = channel.socket().getInetAddress();
+        // A selector loop must not wait for an admission slot, the other connections would wait with it
+        Connection connection = new Connection(
+          new Server.Session(address.isLoopbackAddress(), false)
+        );
+        SelectionKey key = channel.register(
+          selector,
+          SelectionKey.OP_READ,
+          connection
+        );
+        server.stats().connectionOpened();
+        // Responses are written on this loop's thread; what the socket does not take at once stays queued
+        connection.out = new ResponseWriter(
+          (buffers, offset, count) ->
+            send(key, connection, buffers, offset, count),
+          false
+        );
+        // Send a "Hello" message to the client
+        connection.out.print(BinaryProtocol.GREETING);
+        connection.out.endResponse();
+      }
+    }
+
+    // Marks the end of a request for the read timeout; any bytes after it in this read start the next one
+    private void requestRead(Connection connection) {
+      connection.requestStarted = System.nanoTime();
+    }
+
+    private void read(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+      readBuffer.clear();
+      int read = channel.read(readBuffer);
+      if (read == -1) {
+        close(key);
+        return;
+      }
+      server.stats().bytesRead(read);
+      long now = System.nanoTime();
+      connection.lastActivity = now;
+      if (connection.lineLength == 0) {
+        connection.requestStarted = now; // Reset below if these bytes end the request
+      }
+      readBuffer.flip();
+      if (!frame(key, connection, readBuffer)) {
+        return;
+      }
+      if (readBuffer.hasRemaining()) {
+        // The responses are backed up; keep the rest of this read for when the client has taken them
+        connection.unread = ByteBuffer.allocate(readBuffer.remaining()).put(readBuffer).flip();
+        updateInterest(key, connection);
+      }
+    }
+
+    // Handles the commands held back by backpressure once the responses have drained below the limit
+    private void resumeFraming(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      if (
+        !key.isValid() ||
+        connection.unread == null ||
+        connection.pendingBytes >= MAX_PENDING_BYTES
+      ) {
+        return;
+      }
+      if (!frame(key, connection, connection.unread)) {
+        return;
+      }
+      if (!connection.unread.hasRemaining()) {
+        connection.unread = null;
+      }
+      updateInterest(key, connection);
+    }
+
+    // Frames commands from the buffer and handles them in order until it is empty or the unsent responses reach
+    // MAX_PENDING_BYTES; false if the client was dropped
+    private boolean frame(SelectionKey key, Connection connection, ByteBuffer buffer)
+      throws IOException {
+      // Several pipelined commands may arrive in one read
+      while (buffer.hasRemaining() && connection.pendingBytes < MAX_PENDING_BYTES) {
+        if (connection.session.binaryFrames()) {
+          if (!readFrame(key, connection, buffer)) {
+            return false;
+          }
+          continue;
+        }
+        byte b = buffer.get();
+        if (b == '\n') {
+          int length = connection.lineLength;
+          if (length > 0 && connection.line[length - 1] == '\r') {
+            length--;
+          }
+          String request = new String(
+            connection.line,
+            0,
+            length,
+            StandardCharsets.UTF_8
+          );
+          connection.lineLength = 0;
+          requestRead(connection);
+          // Requests are handled in arrival order, so responses are queued in the same order
+          server.handleRequest(connection.session, 0, request, connection.out);
+        } else if (connection.lineLength == MAX_LINE_LENGTH) {
+          Log.warn("SERVER: Dropping client, command too long");
+          close(key);
+          return false;
+        } else {
+          connection.appendToLine(b);
+        }
+      }
+      return key.isValid();
+    }
+
+    // Collects the header and then the body of a binary request frame, handling it once it is complete;
+    // false if the client was dropped
+    private boolean readFrame(SelectionKey key, Connection connection, ByteBuffer buffer)
+      throws IOException {
+      if (connection.lineLength < BinaryProtocol.HEADER_BYTES) {
+        connection.appendToLine(
+          buffer,
+          BinaryProtocol.HEADER_BYTES - connection.lineLength
+        );
+        if (connection.lineLength < BinaryProtocol.HEADER_BYTES) {
+          return true;
+        }
+      }
+      ByteBuffer header = ByteBuffer.wrap(connection.line);
+      int bodyLength = header.getInt(0);
+      int requestId = header.getInt(4);
+      if (bodyLength < 0 || bodyLength > MAX_LINE_LENGTH) {
+        Log.warn("SERVER: Dropping client, request frame too long");
+        close(key);
+        return false;
+      }
+      int frameLength = BinaryProtocol.HEADER_BYTES + bodyLength;
+      connection.appendToLine(buffer, frameLength - connection.lineLength);
+      if (connection.lineLength < frameLength) {
+        return true;
+      }
+      String request = new String(
+        connection.line,
+        BinaryProtocol.HEADER_BYTES,
+        bodyLength,
+        StandardCharsets.UTF_8
+      );
+      connection.lineLength = 0;
+      requestRead(connection);
+      server.handleRequest(connection.session, requestId, request, connection.out);
+      return true;
+    }
+
+    // Queues a batch from the connection's writer and sends as much of the queue as the socket takes now
+    private void send(
+      SelectionKey key,
+      Connection connection,
+      ByteBuffer[] buffers,
+      int offset,
+      int count
+    ) throws IOException {
+      if (connection.outbound.isEmpty()) {
+        connection.writeStalledSince = System.nanoTime(); // The write timeout runs from here until it drains
+      }
+      for (int i = offset; i < offset + count; i++) {
+        if (!buffers[i].hasRemaining()) {
+          continue;
+        }
+        connection.outbound.add(buffers[i]);
+        connection.pendingBytes += buffers[i].remaining();
+      }
+      write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+      while (!connection.outbound.isEmpty()) {
+        int count = 0;
+        for (ByteBuffer buffer : connection.outbound) {
+          gather[count++] = buffer;
+          if (count == MAX_GATHER) {
+            break;
+          }
+        }
+        long written = channel.write(gather, 0, count);
+        Arrays.fill(gather, 0, count, null);
+        connection.pendingBytes -= written;
+        server.stats().bytesWritten(written);
+        while (
+          !connection.outbound.isEmpty() &&
+          !connection.outbound.peek().hasRemaining()
+        ) {
+          connection.outbound.poll();
+        }
+        if (written == 0) {
+          break; // Socket buffer is full, wait for the next OP_WRITE
+        }
+        connection.writeStalledSince = System.nanoTime();
+        connection.lastActivity = connection.writeStalledSince;
+      }
+      if (connection.outbound.isEmpty()) {
+        connection.writeStalledSince = 0;
+      }
+      updateInterest(key, connection);
+    }
+
+    private void updateInterest(SelectionKey key, Connection connection) {
+      if (!key.isValid()) {
+        return;
+      }
+      int interest = connection.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+      // Stop reading from a client that pipelines faster than it reads its responses, and until the commands
+      // already read from it are handled
+      if (connection.pendingBytes < MAX_PENDING_BYTES && connection.unread == null) {
+        interest |= SelectionKey.OP_READ;
+      }
+      key.interestOps(interest);
+    }
+
+    private void close(SelectionKey key) {
+      if (!key.isValid()) {
+        return; // Already closed, by the reaper or an earlier failure of the same request
+      }
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        // Nothing left to do for a channel that failed to close
+      }
+      openSessions.decrementAndGet();
+      server.stats().connectionClosed();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A column of strings stored back to back as UTF-8 bytes with an offset table, on the heap or off-heap
+final class PackedStrings {
+
+  private final byte[] heap; // Packed bytes when stored on the heap, otherwise null
+  private final ByteBuffer offHeap; // Packed bytes in a direct buffer when stored off-heap, otherwise null
+  private final int[] offsets; // Value i is bytes offsets[i]..offsets[i + 1]
+
+  PackedStrings(String[] values, boolean useOffHeap) {
+    offsets = new int[values.length + 1];
+    byte[] packed = new byte[Math.max(16, values.length * 16)];
+    int length = 0;
+    for (int i = 0; i < values.length; i++) {
+      byte[] bytes = values[i].getBytes(StandardCharsets.UTF_8);
+      if ((long) length + bytes.length > Integer.MAX_VALUE - 8) {
+        throw new IllegalStateException("String column is larger than 2 GB");
+      }
+      if (length + bytes.length > packed.length) {
+        long grown = Math.max((long) packed.length * 2, length + bytes.length);
+        packed = Arrays.copyOf(packed, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+      }
+      System.arraycopy(bytes, 0, packed, length, bytes.length);
+      length += bytes.length;
+      offsets[i + 1] = length;
+    }
+    if (useOffHeap) {
+      heap = null;
+      offHeap = ByteBuffer.allocateDirect(length).put(packed, 0, length).flip();
+    } else {
+      heap = Arrays.copyOf(packed, length);
+      offHeap = null;
+    }
+  }
+
+  // Reads a column written by writeTo; the bytes stay in the snapshot's mapping instead of being copied
+  PackedStrings(Snapshot.Reader in) {
+    offsets = in.readInts();
+    heap = null;
+    offHeap = in.slice(in.readInt());
+  }
+
+  void writeTo(Snapshot.Writer out) throws IOException {
+    out.writeInts(offsets);
+    int length = offsets[offsets.length - 1];
+    out.writeInt(length);
+    if (heap != null) {
+      out.writeRaw(ByteBuffer.wrap(heap), length);
+    } else {
+      out.writeRaw(offHeap.duplicate().position(0), length);
+    }
+  }
+
+  int size() {
+    return offsets.length - 1;
+  }
+
+  String get(int index) {
+    int from = offsets[index];
+    int length = offsets[index + 1] - from;
+    if (heap != null) {
+      return new String(heap, from, length, StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[length];
+    offHeap.get(from, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Value 'index' as a read-only view of its UTF-8 bytes, for writing it out without decoding it
+  ByteBuffer bytes(int index) {
+    int from = offsets[index];
+    int length = offsets[index + 1] - from;
+    if (heap != null) {
+      return ByteBuffer.wrap(heap, from, length).slice().asReadOnlyBuffer();
+    }
+    return offHeap.slice(from, length);
+  }
+
+  // Whether value 'index' contains the UTF-8 encoded needle; a byte match is a char match because UTF-8 is self-synchronising
+  boolean contains(int index, byte[] needle) {
+    int from = offsets[index];
+    int last = offsets[index + 1] - needle.length;
+    for (int start = from; start <= last; start++) {
+      int i = 0;
+      while (i < needle.length && byteAt(start + i) == needle[i]) {
+        i++;
+      }
+      if (i == needle.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Bytes used by the packed data and the offset table
+  long memoryBytes() {
+    long data = offsets[offsets.length - 1];
+    return data + (long) offsets.length * Integer.BYTES;
+  }
+
+  boolean isOffHeap() {
+    return offHeap != null;
+  }
+
+  private byte byteAt(int position) {
+    return heap != null ? heap[position] : offHeap.get(position);
+  }
+}
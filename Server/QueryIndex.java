@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.util.*;
+
+// Sorted secondary indexes over the score, release date and title columns, for the 'query' command
+//
+// For each field the index holds every game in one order: the games that have a value sorted by it (ties in
+// catalogue order), then the games without one ("tbd" scores, dates that did not parse) in catalogue order. A
+// range predicate is a binary search for a slice of the sorted part, and a game's position in the order, read
+// from a rank array, is a unique sort key that pages can resume from.
+final class QueryIndex {
+
+  enum Field {
+    META("meta", true),
+    USER("user", true),
+    DATE("date", true),
+    TITLE("title", false);
+
+    final String name;
+    final boolean descendingByDefault; // Best scores and newest games first, titles from A
+
+    Field(String name, boolean descendingByDefault) {
+      this.name = name;
+      this.descendingByDefault = descendingByDefault;
+    }
+
+    static Field named(String name) {
+      for (Field field : values()) {
+        if (field.name.equals(name)) {
+          return field;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final GameStore store;
+  private final int[][] orders = new int[Field.values().length][]; // Games per field, sorted part first
+  private final int[] keyed = new int[Field.values().length]; // Length of each order's sorted part
+  private final int[][] ranks = new int[Field.values().length][]; // Position of each game in each order
+
+  QueryIndex(GameStore store) {
+    this.store = store;
+    for (Field field : Field.values()) {
+      // The games with a value from the front, the ones without from the back, both in catalogue order
+      int[] order = new int[store.size()];
+      int withValue = 0;
+      int withoutValue = order.length;
+      for (int game = 0; game < store.size(); game++) {
+        if (hasValue(field, game)) {
+          order[withValue++] = game;
+        }
+      }
+      for (int game = store.size() - 1; game >= 0; game--) {
+        if (!hasValue(field, game)) {
+          order[--withoutValue] = game;
+        }
+      }
+      int[] unsorted = Arrays.copyOf(order, withValue);
+      int[] sorted = field == Field.TITLE
+        ? sortByTitle(unsorted)
+        : Catalogue.sort(unsorted, (g1, g2) -> Double.compare(value(field, g1), value(field, g2)));
+      System.arraycopy(sorted, 0, order, 0, withValue);
+      orders[field.ordinal()] = order;
+      keyed[field.ordinal()] = withValue;
+    }
+    buildRanks();
+  }
+
+  // Reads indexes written by writeTo for the given store
+  QueryIndex(GameStore store, Snapshot.Reader in) {
+    this.store = store;
+    for (Field field : Field.values()) {
+      keyed[field.ordinal()] = in.readInt();
+      orders[field.ordinal()] = in.readInts();
+    }
+    buildRanks();
+  }
+
+  void writeTo(Snapshot.Writer out) throws IOException {
+    for (Field field : Field.values()) {
+      out.writeInt(keyed[field.ordinal()]);
+      out.writeInts(orders[field.ordinal()]);
+    }
+  }
+
+  // Approximate heap used by the orders and ranks, in bytes
+  long memoryBytes() {
+    return (long) Field.values().length * 2 * store.size() * Integer.BYTES;
+  }
+
+  // Number of games ordered by the field, the ones without a value included
+  int size() {
+    return store.size();
+  }
+
+  // Number of games that have a value for the field, the sorted part of its order
+  int valueCount(Field field) {
+    return keyed[field.ordinal()];
+  }
+
+  // Positions [from, to) in the ascending order of the games whose value is within [low, high]
+  int[] range(Field field, double low, double high) {
+    int[] order = orders[field.ordinal()];
+    int end = keyed[field.ordinal()];
+    // First position whose value is >= low, then the first whose value is > high
+    int from = 0;
+    int to = end;
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (value(field, order[mid]) < low) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    int start = from;
+    to = end;
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (value(field, order[mid]) <= high) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    return new int[] { start, from };
+  }
+
+  // A game's position when ordering by the field; descending reverses the sorted part only, so the games
+  // without a value come last either way
+  int position(Field field, boolean descending, int game) {
+    int rank = ranks[field.ordinal()][game];
+    int end = keyed[field.ordinal()];
+    return descending && rank < end ? end - 1 - rank : rank;
+  }
+
+  // The game at a position, the inverse of position
+  int gameAt(Field field, boolean descending, int position) {
+    int end = keyed[field.ordinal()];
+    int rank = descending && position < end ? end - 1 - position : position;
+    return orders[field.ordinal()][rank];
+  }
+
+  // Positions of the ascending slice [from, to) in the given direction, as [start, end)
+  int[] positions(Field field, boolean descending, int from, int to) {
+    if (!descending) {
+      return new int[] { from, to };
+    }
+    int end = keyed[field.ordinal()];
+    return new int[] { end - to, end - from };
+  }
+
+  // The value the field sorts and filters on; release dates as days since 1970-01-01
+  double value(Field field, int game) {
+    return switch (field) {
+      case META -> store.metascore(game);
+      case USER -> store.userscore(game);
+      case DATE -> store.releaseDay(game);
+      case TITLE -> throw new IllegalArgumentException("Titles have no numeric value");
+    };
+  }
+
+  boolean hasValue(Field field, int game) {
+    return switch (field) {
+      case META -> !Double.isNaN(store.metascore(game));
+      case USER -> !Double.isNaN(store.userscore(game));
+      case DATE -> store.releaseDay(game) != GameStore.NO_DATE;
+      case TITLE -> true;
+    };
+  }
+
+  private void buildRanks() {
+    for (Field field : Field.values()) {
+      int[] order = orders[field.ordinal()];
+      int[] rank = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        rank[order[i]] = i;
+      }
+      ranks[field.ordinal()] = rank;
+    }
+  }
+
+  // Titles ignoring case, decoded once up front instead of on every comparison
+  private int[] sortByTitle(int[] games) {
+    String[] lowercased = new String[store.size()];
+    for (int game : games) {
+      lowercased[game] = store.title(game).toLowerCase(Locale.ROOT);
+    }
+    return Catalogue.sort(games, (g1, g2) -> lowercased[g1].compareTo(lowercased[g2]));
+  }
+}
@@ -0,0 +1,140 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+// Bounded LRU cache of responses (or what they are built from) for deterministic commands, keyed by command,
+// arguments and platform
+//
+// The cache is split into segments by key hash, each an access-ordered LinkedHashMap behind its own lock, so
+// sessions only contend when their keys land in the same segment. Every entry remembers the catalogue it was
+// built from and is ignored once a reload has swapped in another one.
+final class ResponseCache<V> {
+
+  private static final int SEGMENTS = 16; // Power of two, so a key's segment is a mask of its hash
+  private static final int ENTRY_OVERHEAD_BYTES = 96; // Map node, entry object and the key's String header
+
+  private final List<Segment> segments = new ArrayList<>(SEGMENTS);
+  private final long segmentBudget; // Bytes each segment may hold before it evicts its least recently used entries
+  private final ToLongFunction<V> weigher; // Approximate bytes held by a value
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  ResponseCache(long maxBytes, ToLongFunction<V> weigher) {
+    segmentBudget = maxBytes / SEGMENTS;
+    this.weigher = weigher;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments.add(new Segment());
+    }
+  }
+
+  // The cached value for the key if it was built from this catalogue, otherwise computes and caches it
+  V get(String key, Catalogue catalogue, Supplier<V> compute) {
+    if (segmentBudget <= 0) {
+      return compute.get(); // Caching is turned off
+    }
+    Segment segment = segments.get(spread(key.hashCode()) & (SEGMENTS - 1));
+    V value = segment.get(key, catalogue);
+    if (value != null) {
+      hits.increment();
+      return value;
+    }
+    misses.increment();
+    // Computed outside the lock; two sessions missing on the same key at once both compute it, and the last one wins
+    value = compute.get();
+    segment.put(key, new Entry<>(catalogue, value, weigher.applyAsLong(value)));
+    return value;
+  }
+
+  // Drops every entry, called after a reload so the old catalogue's responses do not hold on to memory
+  void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  // One line with the counters and the current size
+  String report() {
+    int entries = 0;
+    long bytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        entries += segment.map.size();
+        bytes += segment.bytes;
+      }
+    }
+    return (
+      hits.sum() +
+      " hits, " +
+      misses.sum() +
+      " misses, " +
+      evictions.sum() +
+      " evictions, " +
+      entries +
+      " entries, about " +
+      bytes / 1024 +
+      " KB"
+    );
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private record Entry<V>(Catalogue catalogue, V value, long weight) {
+    long bytes() {
+      return ENTRY_OVERHEAD_BYTES + weight;
+    }
+  }
+
+  private final class Segment {
+
+    private final LinkedHashMap<String, Entry<V>> map = new LinkedHashMap<>(
+      16,
+      0.75f,
+      true // Access order, so iteration starts at the least recently used entry
+    );
+    private long bytes;
+
+    synchronized V get(String key, Catalogue catalogue) {
+      Entry<V> entry = map.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.catalogue() != catalogue) {
+        remove(key); // Built from a catalogue that has since been replaced
+        return null;
+      }
+      return entry.value();
+    }
+
+    synchronized void put(String key, Entry<V> entry) {
+      if (entry.bytes() + key.length() * 2L > segmentBudget) {
+        return; // Would not fit even in an empty segment
+      }
+      remove(key);
+      map.put(key, entry);
+      bytes += entry.bytes() + key.length() * 2L;
+      Iterator<Map.Entry<String, Entry<V>>> eldest = map.entrySet().iterator();
+      while (bytes > segmentBudget) {
+        Map.Entry<String, Entry<V>> victim = eldest.next();
+        bytes -= victim.getValue().bytes() + victim.getKey().length() * 2L;
+        eldest.remove();
+        evictions.increment();
+      }
+    }
+
+    synchronized void clear() {
+      map.clear();
+      bytes = 0;
+    }
+
+    private void remove(String key) {
+      Entry<V> old = map.remove(key);
+      if (old != null) {
+        bytes -= old.bytes() + key.length() * 2L;
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+// DEFLATE compression of large binary responses for sessions that asked for it with 'compress on'
+//
+// A response is compressed as one zlib stream spread over its frames: every frame but the last ends with a sync
+// flush, so the client can inflate each frame as it arrives, and the last one finishes the stream. Deflaters
+// hold a few hundred KB of native memory each, so they are pooled and lent out one response at a time rather
+// than kept by every connection.
+final class ResponseCompressor {
+
+  // Responses smaller than this go out plain, override with -Dserver.compressMinBytes=<n>
+  static final int MIN_BYTES = Integer.getInteger("server.compressMinBytes", 1024);
+  // 1 (fastest) to 9 (smallest), override with -Dserver.compressLevel=<n>
+  private static final int LEVEL = Integer.getInteger(
+    "server.compressLevel",
+    Deflater.DEFAULT_COMPRESSION
+  );
+  private static final int CHUNK_BYTES = 16 * 1024; // Size of each buffer compressed output is written to
+
+  private final BlockingQueue<Deflater> idle = new ArrayBlockingQueue<>(
+    Math.max(2, Runtime.getRuntime().availableProcessors() * 2)
+  );
+  private final ServerStats stats;
+
+  ResponseCompressor(ServerStats stats) {
+    this.stats = stats;
+  }
+
+  Deflater borrow() {
+    Deflater deflater = idle.poll();
+    return deflater != null ? deflater : new Deflater(LEVEL);
+  }
+
+  // Takes back a deflater, whether or not its stream was finished
+  void release(Deflater deflater) {
+    deflater.reset();
+    if (!idle.offer(deflater)) {
+      deflater.end(); // The pool is full, free the native memory now instead of waiting for the cleaner
+    }
+  }
+
+  // Compresses buffers[offset] to buffers[offset + count - 1] as the next part of the deflater's stream and
+  // returns the compressed bytes; 'last' finishes the stream. The input buffers are consumed.
+  ByteBuffer[] deflate(
+    Deflater deflater,
+    ByteBuffer[] buffers,
+    int offset,
+    int count,
+    boolean last
+  ) {
+    long start = System.nanoTime();
+    long inputBytes = 0;
+    List<ByteBuffer> output = new ArrayList<>();
+    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+    for (int i = offset; i < offset + count; i++) {
+      inputBytes += buffers[i].remaining();
+      deflater.setInput(buffers[i]);
+      while (!deflater.needsInput()) {
+        chunk = deflateInto(deflater, chunk, Deflater.NO_FLUSH, output);
+      }
+    }
+    if (last) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        chunk = deflateInto(deflater, chunk, Deflater.NO_FLUSH, output);
+      }
+    } else {
+      // A sync flush is complete once it leaves room in the chunk
+      do {
+        chunk = deflateInto(deflater, chunk, Deflater.SYNC_FLUSH, output);
+      } while (!chunk.hasRemaining());
+    }
+    if (chunk.position() > 0) {
+      output.add(chunk.flip());
+    }
+    long outputBytes = 0;
+    for (ByteBuffer compressed : output) {
+      outputBytes += compressed.remaining();
+    }
+    // Deflating is all computation, so the time spent in it is the CPU time it took
+    stats.compressed(inputBytes, outputBytes, System.nanoTime() - start);
+    return output.toArray(new ByteBuffer[0]);
+  }
+
+  // Deflates into the chunk, moving on to a new chunk when the current one is full
+  private static ByteBuffer deflateInto(
+    Deflater deflater,
+    ByteBuffer chunk,
+    int flush,
+    List<ByteBuffer> output
+  ) {
+    if (!chunk.hasRemaining()) {
+      output.add(chunk.flip());
+      chunk = ByteBuffer.allocate(CHUNK_BYTES);
+    }
+    deflater.deflate(chunk, flush);
+    return chunk;
+  }
+}
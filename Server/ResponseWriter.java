@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Streams one connection's responses as UTF-8 without building them as strings first
+//
+// Text is encoded into a buffer owned by the writer; pre-encoded bytes such as a catalogue's game blocks are
+// queued as views without copying. Both go to the connection in batches, so a front end can send each batch
+// with one gather write and a large response starts arriving before it has all been produced. After a switch to
+// the binary protocol every batch goes out as one frame, see BinaryProtocol, and with compression on a large
+// response's frames carry its DEFLATE stream instead.
+final class ResponseWriter {
+
+  private static final int TEXT_BUFFER_SIZE = 8 * 1024; // Room for encoded text between two batches
+  private static final int MAX_BATCH = 64; // Most buffers handed over in one batch
+  private static final int FLUSH_BYTES = 64 * 1024; // A batch is handed over once it holds this many bytes
+  private static final int COPY_LIMIT = 256; // Pre-encoded bytes up to this size are copied instead of queued as a view
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+    .getBytes(StandardCharsets.UTF_8);
+  private static final String END_OF_TRANSMISSION = "<endoftransmission>";
+
+  // Where batches go; buffers[offset] to buffers[offset + count - 1] are read from their position to their limit
+  interface Output {
+    void write(ByteBuffer[] buffers, int offset, int count) throws IOException;
+  }
+
+  private final Output output;
+  private final boolean reuseText; // Whether the output is done with a batch when write returns, so text can be overwritten
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH + 1]; // batch[0] is kept for a frame header
+  private ByteBuffer text = ByteBuffer.allocate(TEXT_BUFFER_SIZE);
+  private int textStart; // Start of the encoded text not yet added to the batch
+  private int batchSize;
+  private long batchBytes;
+
+  private boolean binary; // Whether responses go out as binary frames instead of text ended by a line
+  private int requestId; // Id of the request being answered, for its frames
+  private byte status = BinaryProtocol.STATUS_OK;
+  private ResponseCompressor compressor; // Set while the session has compression on
+  private boolean framesStarted; // Whether the response being written has sent a frame, which settles compression
+  private Deflater deflater; // Borrowed from the compressor while a compressed response is being written
+
+  // A blocking output sends everything before write returns; a non-blocking one may keep the buffers queued
+  ResponseWriter(Output output, boolean blockingOutput) {
+    this.output = output;
+    this.reuseText = blockingOutput;
+  }
+
+  boolean isBinary() {
+    return binary;
+  }
+
+  // Takes effect from the next response
+  void useBinaryFrames(boolean binary) {
+    this.binary = binary;
+  }
+
+  // Compresses large binary responses from the next response on, or stops with null
+  void useCompression(ResponseCompressor compressor) {
+    releaseDeflater();
+    this.compressor = compressor;
+  }
+
+  // Starts the response to a request; text responses have no id, so 0 is fine for them
+  void beginResponse(int requestId) {
+    this.requestId = requestId;
+    status = BinaryProtocol.STATUS_OK;
+    framesStarted = false;
+    releaseDeflater(); // Left over if the previous response failed half way
+  }
+
+  // Status sent with the frames from here on; text responses carry their status in the message only
+  void setStatus(byte status) {
+    this.status = status;
+  }
+
+  // Status of the response being written, also tracked for text responses so the server can count failures
+  byte status() {
+    return status;
+  }
+
+  // The legacy protocol ends a response with this marker; binary frames say where they end in the header
+  void endOfTransmission() throws IOException {
+    if (!binary) {
+      print(END_OF_TRANSMISSION);
+    }
+  }
+
+  // Text of a response with the marker removed when it is going out in binary frames
+  String withoutEndOfTransmission(String response) {
+    if (binary && response.endsWith(END_OF_TRANSMISSION)) {
+      return response.substring(
+        0,
+        response.length() - END_OF_TRANSMISSION.length()
+      );
+    }
+    return response;
+  }
+
+  void print(String value) throws IOException {
+    CharBuffer chars = CharBuffer.wrap(value);
+    while (encoder.encode(chars, text, true).isOverflow()) {
+      flush(false);
+      if (text.remaining() < TEXT_BUFFER_SIZE / 4) {
+        newTextBuffer();
+      }
+    }
+    encoder.reset();
+  }
+
+  // Queues bytes that the writer must not change, such as a view of a pre-encoded block
+  void write(ByteBuffer bytes) throws IOException {
+    int length = bytes.remaining();
+    if (length <= COPY_LIMIT) {
+      if (text.remaining() < length) {
+        flush(false);
+        newTextBuffer();
+      }
+      text.put(bytes.duplicate());
+      return;
+    }
+    queueText();
+    add(bytes);
+  }
+
+  // Ends the response, with a line break as println did or with the last frame, and hands everything over
+  void endResponse() throws IOException {
+    if (binary) {
+      flush(true);
+    } else {
+      write(ByteBuffer.wrap(LINE_SEPARATOR));
+      flush(false);
+    }
+  }
+
+  private void flush(boolean last) throws IOException {
+    queueText();
+    if (batchSize == 0 && !last) {
+      return;
+    }
+    if (binary) {
+      // The first frame decides: a response that fits in one small frame is not worth compressing
+      if (!framesStarted && compressor != null && batchBytes >= ResponseCompressor.MIN_BYTES) {
+        deflater = compressor.borrow();
+      }
+      framesStarted = true;
+      byte flags = last ? BinaryProtocol.FLAG_LAST : 0;
+      if (deflater != null) {
+        writeCompressedFrame(flags);
+      } else {
+        batch[0] = BinaryProtocol.header((int) batchBytes, requestId, status, flags);
+        output.write(batch, 0, batchSize + 1);
+      }
+      if (last) {
+        releaseDeflater();
+      }
+    } else {
+      output.write(batch, 1, batchSize);
+    }
+    Arrays.fill(batch, 0, batchSize + 1, null);
+    batchSize = 0;
+    batchBytes = 0;
+    if (reuseText) {
+      text.clear();
+      textStart = 0;
+    }
+  }
+
+  private void writeCompressedFrame(byte flags) throws IOException {
+    ByteBuffer[] body = compressor.deflate(
+      deflater,
+      batch,
+      1,
+      batchSize,
+      (flags & BinaryProtocol.FLAG_LAST) != 0
+    );
+    ByteBuffer[] frame = new ByteBuffer[body.length + 1];
+    int bodyBytes = 0;
+    for (int i = 0; i < body.length; i++) {
+      frame[i + 1] = body[i];
+      bodyBytes += body[i].remaining();
+    }
+    frame[0] = BinaryProtocol.header(
+      bodyBytes,
+      requestId,
+      status,
+      (byte) (flags | BinaryProtocol.FLAG_DEFLATE)
+    );
+    output.write(frame, 0, frame.length);
+  }
+
+  private void releaseDeflater() {
+    if (deflater != null) {
+      compressor.release(deflater);
+      deflater = null;
+    }
+  }
+
+  // A queued output still owns the text written so far, so new text goes to a fresh buffer
+  private void newTextBuffer() {
+    if (reuseText) {
+      return; // flush already cleared the buffer
+    }
+    text = ByteBuffer.allocate(TEXT_BUFFER_SIZE);
+    textStart = 0;
+  }
+
+  private void queueText() throws IOException {
+    if (text.position() == textStart) {
+      return;
+    }
+    ByteBuffer encoded = text
+      .duplicate()
+      .limit(text.position())
+      .position(textStart);
+    textStart = text.position();
+    add(encoded);
+  }
+
+  private void add(ByteBuffer bytes) throws IOException {
+    batch[++batchSize] = bytes;
+    batchBytes += bytes.remaining();
+    if (batchSize == MAX_BATCH || batchBytes >= FLUSH_BYTES) {
+      flush(false);
+    }
+  }
+}
@@ -1,245 +1,884 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.random.RandomGenerator;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.management.JMException;
 
-public class Server {
+public final class Server {
 
   private static int PORT; // replace with your desired port number
-  private Map<String, String[]> map = new HashMap<>(); // replace with the map you want to use
-  private Set<String> platforms = new HashSet<>(); // Set to store unique platforms in the game database
+  // Maximum number of clients served at once, override with -Dserver.maxSessions=<n>
+  private static final int MAX_SESSIONS = Integer.getInteger(
+    "server.maxSessions",
+    1024
+  );
+  // Set -Dserver.io=nio to serve clients from selector loops instead of one thread per connection
+  private static final boolean NIO_MODE = "nio".equalsIgnoreCase(
+    System.getProperty("server.io")
+  );
+  // Set -Dserver.offHeapText=true to keep titles and summaries in direct buffers outside the Java heap
+  private static final boolean OFF_HEAP_TEXT = Boolean.getBoolean(
+    "server.offHeapText"
+  );
+  // Set -Dserver.shard=<index>/<count> to serve only this shard's part of games.csv behind a ShardRouter; the
+  // games are split by -Dserver.shardBy, which must match the router's
+  private static final String SHARD = System.getProperty("server.shard");
+  private static final int SHARD_INDEX = SHARD == null ? 0 : Integer.parseInt(SHARD.split("/")[0]);
+  private static final int SHARD_COUNT = SHARD == null ? 1 : Integer.parseInt(SHARD.split("/")[1]);
+  // The rows this server keeps, recorded in its snapshot so another shard spec or split never loads it
+  private static final Snapshot.Partition PARTITION = SHARD == null
+    ? Snapshot.Partition.ALL
+    : new Snapshot.Partition(SHARD_INDEX, SHARD_COUNT, ShardRouter.BY_PLATFORM);
+  // Where the binary snapshot of the catalogue is kept, override with -Dserver.snapshot=<path> or set it empty to disable;
+  // each shard keeps its own
+  private static final String SNAPSHOT_PATH = System.getProperty(
+    "server.snapshot",
+    SHARD == null
+      ? "./games.snapshot"
+      : "./games.shard-" + SHARD_INDEX + "-of-" + SHARD_COUNT + ".snapshot"
+  );
+  private static final String CSV_PATH = "./games.csv";
+  static final int MAX_REQUEST_BYTES = 64 * 1024; // Longest command we accept before dropping the client
+  // Set -Dserver.watchCsv=true to reload the catalogue whenever games.csv changes
+  private static final boolean WATCH_CSV = Boolean.getBoolean("server.watchCsv");
+  private static final long WATCH_SETTLE_MILLIS = 500; // Quiet time after the last change before reloading
+  // Set -Dserver.responseCacheBytes to size the cache of top/worst/search responses, 0 turns it off
+  private static final long RESPONSE_CACHE_BYTES = Long.getLong(
+    "server.responseCacheBytes",
+    32L << 20
+  );
+  // Number of selector loops in NIO mode, defaults to one per core
+  private static final int NIO_LOOPS = Integer.getInteger(
+    "server.nioLoops",
+    Runtime.getRuntime().availableProcessors()
+  );
+  // Most games one response lists, override with -Dserver.maxResults=<n>; 'random' asks beyond it are rejected,
+  // 'top', 'worst' and 'search' list the first this many
+  static final int MAX_RESULTS = Integer.getInteger("server.maxResults", 10_000);
+  // Requests per second one connection may send, with bursts of -Dserver.rateBurst; 0 (the default) for no limit
+  private static final int RATE_LIMIT = Integer.getInteger("server.rateLimit", 0);
+  private static final int RATE_BURST = Integer.getInteger(
+    "server.rateBurst",
+    Math.max(1, RATE_LIMIT)
+  );
+  // Set -Dserver.stats=false to stop timing requests, for measuring what the instrumentation costs
+  private static final boolean COLLECT_STATS = !"false".equalsIgnoreCase(
+    System.getProperty("server.stats")
+  );
 
-  private String platformFilter;
+  // The game database, partitioned by platform and ranked by score. A catalogue is never modified once built;
+  // a reload builds a new one and swaps it in here, and each request reads this once and uses that version throughout
+  private final AtomicReference<Catalogue> catalogue = new AtomicReference<>();
+
+  // Reloads run one at a time on this thread, and a reload asked for while another is waiting is folded into it
+  private final ExecutorService reloader = Executors.newSingleThreadExecutor(
+    Thread.ofPlatform().name("catalogue-reloader").daemon().factory()
+  );
+  private final AtomicBoolean reloadQueued = new AtomicBoolean();
+
+  // Results of the deterministic commands, shared by all sessions: the encoded 'top' and 'worst' responses,
+  // and the games matching a 'search', whose blocks are already encoded in the catalogue
+  private final ResponseCache<byte[]> rankingCache = new ResponseCache<>(
+    RESPONSE_CACHE_BYTES / 2,
+    response -> response.length
+  );
+  private final ResponseCache<int[]> searchCache = new ResponseCache<>(
+    RESPONSE_CACHE_BYTES / 2,
+    matches -> (long) matches.length * Integer.BYTES
+  );
+
+  // Request latencies, connections and traffic, for the 'stats' command and JMX
+  private final ServerStats stats = new ServerStats();
+  // Shared by every session with compression on, it lends out the pooled deflaters
+  private final ResponseCompressor compressor = new ResponseCompressor(stats);
+  // Limits the requests answered at once, and closes connections that stall
+  private final AdmissionControl admission = new AdmissionControl();
+  private final ConnectionReaper reaper = new ConnectionReaper(stats);
+
+  // State that belongs to a single client connection
+  static class Session {
+
+    private final boolean admin; // Whether admin commands such as 'reload' are allowed, true for local clients
+    private String platformFilter; // Canonical platform name, null means results from all platforms
+    private boolean binaryFrames; // Whether the client switched to BinaryProtocol with the 'protocol' command
+    private boolean compress; // Whether large binary responses are compressed, set with the 'compress' command
+    private final boolean mayWait; // Whether a request may wait for an admission slot, false on selector loops
+    private double rateTokens = RATE_BURST; // Requests that may still be sent at once, refilled at RATE_LIMIT a second
+    private long rateRefilledAt = System.nanoTime();
+
+    Session(boolean admin) {
+      this(admin, true);
+    }
+
+    Session(boolean admin, boolean mayWait) {
+      this.admin = admin;
+      this.mayWait = mayWait;
+    }
+
+    boolean binaryFrames() {
+      return binaryFrames;
+    }
+
+    // Takes a request out of the connection's token bucket; false if it is over its rate
+    private boolean withinRateLimit() {
+      if (RATE_LIMIT <= 0) {
+        return true;
+      }
+      long now = System.nanoTime();
+      rateTokens = Math.min(RATE_BURST, rateTokens + (now - rateRefilledAt) * RATE_LIMIT / 1e9);
+      rateRefilledAt = now;
+      if (rateTokens < 1) {
+        return false;
+      }
+      rateTokens--;
+      return true;
+    }
+  }
 
   public Server() {
     // Constructor for Server class
-    System.out.println("SERVER: Loading game database...");
-    readCsv("./games.csv"); // Reads the game database from a CSV file
+    Log.info("SERVER: Loading game database...");
     Instant start = Instant.now();
-    populatePlatforms(); // Populates the 'platforms' set with unique platforms in the game database
+    Catalogue loaded = loadCatalogue();
+    catalogue.set(loaded);
     Instant end = Instant.now();
     Duration duration = Duration.between(start, end);
     long millis = duration.toMillis();
-    System.out.println(
+    stats.catalogueLoaded(loaded.size(), millis);
+    Log.info(
       "SERVER: Finished reading in: " +
-      map.size() +
+      loaded.size() +
       " games in " +
       millis +
       " ms"
     );
-    platformFilter = null; // Initializes the platform filter to null
+    Log.info("SERVER: Memory: " + loaded.footprintReport());
+    Log.info(
+      "SERVER: Title search index: " + loaded.titleIndexReport()
+    );
   }
 
-  private void populatePlatforms() {
-    // Method to populate the 'platforms' set with unique platforms in the game database
-    for (Map.Entry<String, String[]> entry : map.entrySet()) {
-      String[] value = entry.getValue(); // Retrieves the array of values for the current entry
-      platforms.add(value[1]); // Adds the value at index 1 (platform) to the 'platforms' set
-    }
+  // Serves a catalogue that is already built; the benchmarks in bench/ use this and the package-private helpers
+  Server(Catalogue catalogue) {
+    this.catalogue.set(catalogue);
   }
 
-  private Map<String, String[]> getFilteredMapByPlatform(
-    String platformFilter
-  ) {
-    if (platformFilter == null) {
-      System.out.println(
-        "SERVER: RESETTING FILTER TO SEARCH THROUGH ALL PLATFORMS"
-      );
-      return map; // If no filter is set, return the original map
+  // Maps the snapshot when it is up to date, otherwise parses the CSV and rewrites the snapshot in the background
+  private Catalogue loadCatalogue() {
+    Path csv = Paths.get(CSV_PATH);
+    Path snapshot = SNAPSHOT_PATH.isEmpty() ? null : Paths.get(SNAPSHOT_PATH);
+    if (snapshot != null) {
+      Catalogue loaded = Snapshot.load(snapshot, csv, PARTITION);
+      if (loaded != null) {
+        Log.info("SERVER: Loaded snapshot " + snapshot);
+        return loaded;
+      }
     }
+    CsvLoader loader = new CsvLoader(csv, ForkJoinPool.commonPool());
+    Map<String, String[]> games = ownRows(readCsv(loader)); // Reads the game database from a CSV file
+    Catalogue parsed = new Catalogue(games, OFF_HEAP_TEXT, loader.source()); // Stores the games by column, splits them by platform and ranks them
+    writeSnapshotInBackground(parsed);
+    return parsed;
+  }
 
-    // Create a new HashMap to store the filtered games
-    Map<String, String[]> filteredMap = new HashMap<>();
+  // The catalogue is immutable, so it can be written while the server is already answering requests
+  private void writeSnapshotInBackground(Catalogue catalogue) {
+    if (SNAPSHOT_PATH.isEmpty()) {
+      return;
+    }
+    Path snapshot = Paths.get(SNAPSHOT_PATH);
+    Thread.ofVirtual()
+      .name("snapshot-writer")
+      .start(() -> {
+        try {
+          Snapshot.write(catalogue, snapshot, Paths.get(CSV_PATH), PARTITION);
+          Log.info("SERVER: Wrote snapshot " + snapshot);
+        } catch (IOException e) {
+          Log.warn("SERVER: Could not write snapshot: " + e);
+        }
+      });
+  }
 
-    // Iterate through the original map and filter games based on the platform
-    for (Map.Entry<String, String[]> entry : map.entrySet()) {
-      String[] gameInfo = entry.getValue();
-      String platform = gameInfo[1]; // Assuming the platform is at index 1 in the gameInfo array
+  // Whether this server keeps the row: every row, unless it is one shard of several
+  private static boolean ownsRow(String[] row) {
+    return (
+      SHARD == null ||
+      ShardRouter.shardOf(ShardRouter.BY_PLATFORM ? row[1] : row[0], SHARD_COUNT) == SHARD_INDEX
+    );
+  }
 
-      if (platform.equalsIgnoreCase(platformFilter)) {
-        filteredMap.put(entry.getKey(), gameInfo); // If the game's platform matches the filter, add it to the filtered map
-      }
+  private static Map<String, String[]> ownRows(Map<String, String[]> games) {
+    if (SHARD != null) {
+      games.values().removeIf(row -> !ownsRow(row));
+      Log.info(
+        "SERVER: Serving shard " +
+        SHARD +
+        " by " +
+        (ShardRouter.BY_PLATFORM ? "platform" : "title") +
+        ", " +
+        games.size() +
+        " games"
+      );
     }
+    return games;
+  }
 
-    System.out.println("SERVER: SETTING FILTER TO: " + platformFilter);
+  // Queues a reload of games.csv on the reloader thread; false if one is already waiting to run
+  boolean requestReload(String reason) {
+    if (!reloadQueued.compareAndSet(false, true)) {
+      return false;
+    }
+    reloader.execute(() -> {
+      reloadQueued.set(false);
+      reloadCatalogue(reason);
+    });
+    return true;
+  }
 
-    return filteredMap; // Return the filtered map
+  // Builds a new catalogue next to the live one and publishes it with a single swap; requests never wait for it
+  private void reloadCatalogue(String reason) {
+    Log.info("SERVER: Reloading game database (" + reason + ")");
+    Log.info("SERVER: Ranking cache: " + rankingCache.report());
+    Log.info("SERVER: Search cache: " + searchCache.report());
+    Instant start = Instant.now();
+    Catalogue current = catalogue.get();
+    CsvLoader loader = new CsvLoader(
+      Paths.get(CSV_PATH),
+      ForkJoinPool.commonPool()
+    );
+    try {
+      Map<String, String[]> games = null;
+      String how = "full parse";
+      if (current.source() != null) {
+        // If the file only grew, parse just the new bytes and add them to the rows we already have. Only the
+        // parse is incremental: the catalogue and all of its indexes are still built again from every row,
+        // since game ids follow the order of the rows map and every index is laid out by id
+        List<String[]> appended = loader.loadAppended(current.source());
+        if (appended != null) {
+          if (loader.source().length() == current.source().length()) {
+            Log.info("SERVER: games.csv is unchanged, keeping the catalogue");
+            return;
+          }
+          games = current.rows();
+          for (String[] row : appended) {
+            if (ownsRow(row)) {
+              games.put(row[0], row); // Later rows replace earlier ones, as in a full load
+            }
+          }
+          how = "parsed " + appended.size() + " appended rows, rebuilt the indexes";
+        }
+      }
+      if (games == null) {
+        games = ownRows(loader.load());
+      }
+      Catalogue next = new Catalogue(games, OFF_HEAP_TEXT, loader.source());
+      catalogue.set(next);
+      // Entries from the old catalogue would be ignored anyway, this frees them now
+      rankingCache.clear();
+      searchCache.clear();
+      long millis = Duration.between(start, Instant.now()).toMillis();
+      stats.catalogueLoaded(next.size(), millis);
+      Log.info(
+        "SERVER: Reloaded " +
+        next.size() +
+        " games (" +
+        how +
+        ") in " +
+        millis +
+        " ms"
+      );
+      writeSnapshotInBackground(next);
+    } catch (IOException | RuntimeException e) {
+      Log.warn("SERVER: Reload failed, keeping the current catalogue: " + e);
+    }
   }
 
-  //parses through CSV from Kaggle
-  private void readCsv(String filePath) {
-    try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-      // Open the CSV file for reading using a BufferedReader
-      String line;
-      List<String> values = new ArrayList<>(); // Store the values of each row in the CSV file
-      StringBuilder currentValue = new StringBuilder(); // Store the current value being read
-      boolean inQuotes = false; // Whether or not we're currently inside a pair of quotes
-
-      // Skip the first line (header row)
-      br.readLine();
-
-      // Read in each line of the CSV file
-      while ((line = br.readLine()) != null) {
-        // Read each character of the line
-        for (int i = 0; i < line.length(); i++) {
-          char c = line.charAt(i);
-
-          // If we're inside a pair of quotes, handle the character differently
-          if (inQuotes) {
-            if (c == '\"') {
-              // If the current character is a quote, check if it's a closing quote or an escaped quote
-              if (i + 1 < line.length() && line.charAt(i + 1) == '\"') {
-                currentValue.append('\"'); // If it's an escaped quote, append a single quote to the current value
-                i++; // Skip the next character since it's part of the escaped quote
-              } else {
-                inQuotes = false; // If it's a closing quote, we're no longer inside a pair of quotes
+  // Watches the CSV's directory and asks for a reload once the file has stopped changing
+  private void watchCsv() {
+    Path csv = Paths.get(CSV_PATH).toAbsolutePath().normalize();
+    Thread.ofPlatform()
+      .name("csv-watcher")
+      .daemon()
+      .start(() -> {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+          csv
+            .getParent()
+            .register(
+              watcher,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY
+            );
+          Log.info("SERVER: Watching " + csv + " for changes");
+          while (true) {
+            WatchKey key = watcher.take();
+            boolean changed = false;
+            // Keep draining events until the file has been quiet for a while, so a long copy triggers one reload
+            while (key != null) {
+              for (WatchEvent<?> event : key.pollEvents()) {
+                changed |= csv.getFileName().equals(event.context());
               }
-            } else {
-              currentValue.append(c); // If it's not a quote, append the character to the current value
+              key.reset();
+              key = watcher.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
             }
-          } else {
-            // If we're not inside a pair of quotes, handle the character differently
-            if (c == '\"') {
-              inQuotes = true; // If the current character is a quote, we're now inside a pair of quotes
-            } else if (c == ',') {
-              // If the current character is a comma, we've finished reading a value
-              values.add(currentValue.toString().trim()); // Add the current value to the values list
-              currentValue.setLength(0); // Clear the current value buffer
-            } else {
-              currentValue.append(c); // If it's not a quote or a comma, append the character to the current value
+            if (changed) {
+              requestReload("games.csv changed");
             }
           }
+        } catch (IOException e) {
+          Log.warn("SERVER: Could not watch " + csv + ": " + e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
+      });
+  }
 
-        // If we're not inside a pair of quotes, we've finished reading a row
-        if (!inQuotes) {
-          values.add(currentValue.toString().trim()); // Add the final value to the values list
-          currentValue.setLength(0); // Clear the current value buffer
-
-          String[] valuesArray = values.toArray(new String[0]); // Convert the values list to an array
-          map.put(valuesArray[0], valuesArray); // Add the row to the map, with the first value as the key
+  // Game indexes on the given platform, straight from the catalogue's partitions
+  int[] getGamesByPlatform(
+    Catalogue catalogue,
+    String platformFilter
+  ) {
+    if (platformFilter == null) {
+      Log.debug("SERVER: RESETTING FILTER TO SEARCH THROUGH ALL PLATFORMS");
+    } else {
+      if (Log.isDebugEnabled()) {
+        Log.debug("SERVER: SETTING FILTER TO: " + platformFilter);
+      }
+    }
+    return catalogue.games(platformFilter);
+  }
 
-          values.clear(); // Clear the values list for the next row
-        } else {
-          currentValue.append('\n'); // If we're inside a pair of quotes, append a newline character to the current value
-        }
+  //parses through CSV from Kaggle
+  Map<String, String[]> readCsv(CsvLoader loader) {
+    // Memory-maps the file and parses it in parallel chunks, see CsvLoader
+    try {
+      Map<String, String[]> games = loader.load();
+      if (loader.malformedRows() > 0) {
+        Log.info(
+          "SERVER: Skipped " +
+          loader.malformedRows() +
+          " rows with missing fields"
+        );
       }
-    } catch (IOException e) {
-      e.printStackTrace();
+      return games;
+    } catch (IOException | RuntimeException e) {
+      Log.error("SERVER: Could not read the game database", e);
+      return new HashMap<>();
     }
   }
 
+  ServerStats stats() {
+    return stats;
+  }
+
   public void start() {
-    try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-      System.out.println("Server started on port " + PORT);
+    if (WATCH_CSV) {
+      watchCsv();
+    }
+    try {
+      stats.registerMBeans();
+    } catch (JMException e) {
+      Log.warn("SERVER: Could not register the JMX MBeans: " + e);
+    }
+    if (NIO_MODE) {
+      try {
+        new NioFrontEnd(this, PORT, NIO_LOOPS, MAX_SESSIONS).start();
+      } catch (IOException e) {
+        Log.error("SERVER: Could not serve on port " + PORT, e);
+      }
+      return;
+    }
+    // Every accepted connection gets its own virtual thread, capped at MAX_SESSIONS at once
+    Semaphore sessionPermits = new Semaphore(MAX_SESSIONS);
+    reaper.start();
+    try (
+      ServerSocketChannel serverSocket = ServerSocketChannel.open();
+      ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()
+    ) {
+      serverSocket.bind(new InetSocketAddress(PORT));
+      Log.info("Server started on port " + PORT);
 
       // Continuously listen for client connections
       while (true) {
-        System.out.println("SERVER: Awaiting client connection");
-        Socket clientSocket = serverSocket.accept(); // Waits for a client connection
-        System.out.println(
-          "SERVER: Accepted connection from " + clientSocket.getInetAddress()
+        Log.debug("SERVER: Awaiting client connection");
+        SocketChannel clientSocket = serverSocket.accept(); // Waits for a client connection, as a blocking channel
+        if (!sessionPermits.tryAcquire()) { // Turned away at once rather than left waiting in the backlog
+          refuse(clientSocket, stats);
+          continue;
+        }
+        Log.info(
+          "SERVER: Accepted connection from " + clientSocket.socket().getInetAddress()
         );
+        executor.execute(() -> {
+          try {
+            handleClient(clientSocket);
+          } finally {
+            sessionPermits.release();
+          }
+        });
+      }
+    } catch (IOException e) {
+      Log.error("SERVER: Could not serve on port " + PORT, e);
+    }
+  }
+
+  // Tells a client over the session limit so and closes its connection
+  static void refuse(SocketChannel channel, ServerStats stats) {
+    stats.connectionRefused();
+    try (channel) {
+      Log.warn("SERVER: Too many sessions, refusing " + channel.getRemoteAddress());
+      // A new connection's send buffer is empty, so this short write does not block
+      channel.write(ByteBuffer.wrap(encode("Server busy, too many connections" + System.lineSeparator())));
+    } catch (IOException e) {
+      // The client is turned away either way
+    }
+  }
 
-        // Send a "Hello" message to the client
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        out.println("Hello from server!");
+  private void handleClient(SocketChannel clientSocket) {
+    InetAddress address = clientSocket.socket().getInetAddress();
+    Session session = new Session(address.isLoopbackAddress());
+    ConnectionReaper.Watch watch = reaper.watch(clientSocket, address);
+    // The channel is blocking, so a batch has been sent once writeFully returns and the writer can reuse its buffer
+    ResponseWriter out = new ResponseWriter(
+      (buffers, offset, count) -> {
+        watch.writing(); // A client that stops reading would block this write until the reaper closes the channel
+        stats.bytesWritten(writeFully(clientSocket, buffers, offset, count));
+        watch.written();
+      },
+      true
+    );
+    stats.connectionOpened();
+    try (
+      clientSocket;
+      watch;
+      // Lines and frames are read from the same buffer, so switching protocols never loses buffered bytes
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(
+          watch.watchReads(stats.countReads(Channels.newInputStream(clientSocket)))
+        )
+      )
+    ) {
+      // Send a "Hello" message to the client, naming the protocols it can switch to
+      out.print(BinaryProtocol.GREETING);
+      out.endResponse();
 
-        // Handle client request
-        BufferedReader in = new BufferedReader(
-          new InputStreamReader(clientSocket.getInputStream())
-        );
-        String inputLine;
-        while ((inputLine = in.readLine()) != null) {
-          String response = handleRequest(inputLine); // Processes the client request
-          out.println(response); // Sends the response back to the client
+      // Handle client requests until the client disconnects
+      while (true) {
+        watch.awaitRequest();
+        if (session.binaryFrames) {
+          BinaryProtocol.Request frame = BinaryProtocol.read(in, MAX_REQUEST_BYTES);
+          if (frame == null) {
+            break;
+          }
+          watch.requestRead();
+          handleRequest(session, frame.id(), frame.command(), out);
+        } else {
+          String inputLine = readLine(in);
+          if (inputLine == null) {
+            break;
+          }
+          watch.requestRead();
+          handleRequest(session, 0, inputLine, out); // Processes the client request and streams the response back
         }
       }
+    } catch (ClosedChannelException e) {
+      // Closed by the reaper, which logged why
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.info(
+        "SERVER: Connection from " + address + " closed: " + e.getMessage()
+      );
+    } finally {
+      stats.connectionClosed();
+    }
+  }
+
+  // Reads a text command up to '\n' (dropping a '\r' before it), or null at the end of the stream
+  static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+      }
+      if (line.size() == MAX_REQUEST_BYTES) {
+        throw new IOException("Command longer than " + MAX_REQUEST_BYTES + " bytes");
+      }
+      line.write(b);
     }
+    String text = line.toString(StandardCharsets.UTF_8);
+    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
   }
 
-  private String handleRequest(String request) {
+  // Sends every buffer with gather writes, blocking until the socket has taken all of them; the bytes sent
+  private static long writeFully(
+    SocketChannel channel,
+    ByteBuffer[] buffers,
+    int offset,
+    int count
+  ) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + count; i++) {
+      total += buffers[i].remaining();
+    }
+    long remaining = total;
+    while (remaining > 0) {
+      remaining -= channel.write(buffers, offset, count);
+    }
+    return total;
+  }
+
+  // Answers one request through 'out' and ends the response; requestId is only used by binary frames
+  void handleRequest(
+    Session session,
+    int requestId,
+    String request,
+    ResponseWriter out
+  ) throws IOException {
+    long start = COLLECT_STATS ? System.nanoTime() : 0;
+    out.beginResponse(requestId);
+    try {
+      String response;
+      if (!session.withinRateLimit()) {
+        stats.rateLimited();
+        response = busy(out, "Too many requests, at most " + RATE_LIMIT + " a second on one connection");
+      } else if (request.equals("stats")) { // Answered even when every slot is taken, to see why
+        response = respond(session, request, out);
+      } else if (admission.enter(session.mayWait)) {
+        try {
+          response = respond(session, request, out);
+        } finally {
+          admission.exit();
+        }
+      } else {
+        stats.busyRejection();
+        response = busy(out, "Server busy, try again later");
+      }
+      if (response != null) {
+        out.print(out.withoutEndOfTransmission(response));
+      }
+    } catch (RuntimeException e) {
+      Log.error("SERVER: Request failed: " + request, e);
+      out.setStatus(BinaryProtocol.STATUS_SERVER_ERROR);
+      out.print("Internal server error\n");
+      out.endOfTransmission();
+    }
+    out.endResponse();
+    if (COLLECT_STATS) {
+      stats.command(request).record(System.nanoTime() - start, out.status());
+    }
+    // A 'protocol' command is answered in the old framing, the new one starts with the next response
+    out.useBinaryFrames(session.binaryFrames);
+    out.useCompression(session.compress ? compressor : null); // Likewise for 'compress'
+  }
+
+  // Marks the response as rejected and returns the message for it
+  private static String error(ResponseWriter out, String message) {
+    out.setStatus(BinaryProtocol.STATUS_BAD_REQUEST);
+    return message + "\n<endoftransmission>";
+  }
+
+  // Marks the request as turned away for now and returns the message for it
+  private static String busy(ResponseWriter out, String message) {
+    out.setStatus(BinaryProtocol.STATUS_BUSY);
+    return message + "\n<endoftransmission>";
+  }
+
+  // The response as text, or null for the commands that write their output to 'out' themselves
+  private String respond(Session session, String request, ResponseWriter out)
+    throws IOException {
     String[] tokens = request.split("\\s+"); // split the request into tokens by spaces
     String command = tokens[0]; // the first token is the command
-    System.out.println("CLIENT: " + command);
+    if (Log.isDebugEnabled()) {
+      Log.debug("CLIENT: " + command);
+    }
+    Catalogue catalogue = this.catalogue.get(); // the whole request uses this version, even if a reload swaps in a new one
     switch (command) {
       case "random":
+        // Usage: random [number] [unique] [seed <number>]
         int numRandomGames = 1; // Default to 1 random game
         if (tokens.length > 1) { // if there is a second token, try to parse it as an integer
           try {
             numRandomGames = Integer.parseInt(tokens[1]);
           } catch (NumberFormatException e) { // if it's not a valid integer, return an error message
-            return "Invalid number: " + tokens[1] + "\n<endoftransmission>";
+            return error(out, "Invalid number: " + tokens[1]);
+          }
+          if (numRandomGames < 0) {
+            return error(out, "Invalid number: " + tokens[1] + " (must not be negative)");
           }
+          if (numRandomGames > MAX_RESULTS) { // the picks are held in memory, so a huge count is refused up front
+            return error(out, "Invalid number: " + tokens[1] + " (at most " + MAX_RESULTS + " games per request)");
+          }
+        }
+        boolean unique = false; // Whether the same game may come up twice
+        Long seed = null; // Makes the picks repeatable, for the same catalogue and filter
+        for (int i = 2; i < tokens.length; i++) {
+          if (tokens[i].equals("unique")) {
+            unique = true;
+          } else if (tokens[i].equals("seed") && i + 1 < tokens.length) {
+            try {
+              seed = Long.parseLong(tokens[++i]);
+            } catch (NumberFormatException e) {
+              return error(out, "Invalid seed: " + tokens[i]);
+            }
+          } else {
+            return error(out, "Invalid command. Usage: random [number] [unique] [seed <number>] ");
+          }
+        }
+        int[] candidates = getGamesByPlatform(catalogue, session.platformFilter);
+        if (candidates.length == 0 && numRandomGames > 0) {
+          return error(out, "No games on platform " + session.platformFilter);
         }
-        return getRandomGames(numRandomGames); // return a message with numRandomGames random games
+        // A seeded request gets its own generator, otherwise the thread's shared one is enough
+        RandomGenerator random = seed == null
+          ? ThreadLocalRandom.current()
+          : new SplittableRandom(seed);
+        int[] picks = unique
+          ? GameSampler.sampleUnique(candidates, numRandomGames, random)
+          : GameSampler.sample(candidates, numRandomGames, random);
+        writeRandomGames(catalogue, picks, out); // write the numRandomGames random games
+        return null;
       case "top":
         if (tokens.length < 2) { // if there are not enough tokens, return an error message
-          return "Invalid command. Usage: top <number> \n<endoftransmission>";
+          return error(out, "Invalid command. Usage: top <number> ");
         }
         int numGames;
         try {
           numGames = Integer.parseInt(tokens[1]); // try to parse the second token as an integer
         } catch (NumberFormatException e) { // if it's not a valid integer, return an error message
-          return "Invalid number: " + tokens[1];
+          return error(out, "Invalid number: " + tokens[1]);
         }
-        return getTopGames(numGames); // return a message with the top numGames games
+        int topGames = Math.min(numGames, MAX_RESULTS); // larger counts list the same games and share a cache entry
+        byte[] top = rankingCache.get(
+          cacheKey("top", session, Integer.toString(topGames)),
+          catalogue,
+          () -> encode(getTopGames(catalogue, topGames, session.platformFilter))
+        ); // the top numGames games, encoded once and then served from the cache
+        out.write(ByteBuffer.wrap(top));
+        out.endOfTransmission();
+        return null;
       case "platform":
         if (tokens.length < 2) { // if there are not enough tokens, return an error message
-          return "Invalid command. Usage: platform <platform> \n<endoftransmission>";
+          return error(out, "Invalid command. Usage: platform <platform> ");
+        }
+        String platformName = String.join(
+          " ",
+          Arrays.copyOfRange(tokens, 1, tokens.length)
+        ); // platform names such as "Nintendo 64" span several tokens
+        if (platformName.equals("null")) { // if the platform is "null", clear the platform filter
+          session.platformFilter = null;
+        } else {
+          // Platform names match in any case, the filter keeps the catalogue's spelling
+          String canonicalPlatform = catalogue.canonicalPlatform(platformName);
+          if (canonicalPlatform == null) { // if the platform is not in the list of available platforms, return an error message
+            return error(out, "Invalid platform. Please use command 'platforms' to see a list of available platforms ");
+          }
+          session.platformFilter = canonicalPlatform;
+        }
+        if (Log.isDebugEnabled()) {
+          Log.debug("SERVER: Platform set to " + session.platformFilter);
         }
-        if (tokens[1].equals("null")) platformFilter = null; else if ( // if the second token is "null", clear the platform filter
-          !platforms.contains(tokens[1])
-        ) return "Invalid platform. Please use command 'platforms' to see a list of available platforms \n<endoftransmission>"; else platformFilter = // if the platform is not in the list of available platforms, return an error message // set the platform filter to the second token
-          tokens[1];
-        System.out.println("SERVER: Platform set to " + platformFilter);
         return (
-          "Platform filter set to: " + platformFilter + "\n<endoftransmission>"
+          "Platform filter set to: " +
+          session.platformFilter +
+          "\n<endoftransmission>"
         ); // return a message confirming the platform filter has been set
       case "platforms":
-        return getAllPlatforms(); // return a message with all available platforms
+        return getAllPlatforms(catalogue); // return a message with all available platforms
       case "worst":
         if (tokens.length < 2) { // if there are not enough tokens, return an error message
-          return "Invalid command. Usage: top <number> \n<endoftransmission>";
+          return error(out, "Invalid command. Usage: top <number> ");
         }
         int numGamess;
         try {
           numGamess = Integer.parseInt(tokens[1]); // try to parse the second token as an integer
         } catch (NumberFormatException e) { // if it's not a valid integer, return an error message
-          return "Invalid number: " + tokens[1] + "\n<endoftransmission>";
+          return error(out, "Invalid number: " + tokens[1]);
         }
-        return getWorstGames(numGamess); // return a message with the worst numGamess games
+        int worstGames = Math.min(numGamess, MAX_RESULTS);
+        byte[] worst = rankingCache.get(
+          cacheKey("worst", session, Integer.toString(worstGames)),
+          catalogue,
+          () -> encode(getWorstGames(catalogue, worstGames, session.platformFilter))
+        ); // the worst numGamess games, encoded once and then served from the cache
+        out.write(ByteBuffer.wrap(worst));
+        out.endOfTransmission();
+        return null;
       case "search":
         // Handle search command
         if (tokens.length < 2) {
-          return "Invalid command. Usage: search <game_title> \n<endoftransmission>";
+          return error(out, "Invalid command. Usage: search <game_title> ");
         }
         String gameTitle = String.join(
           " ",
           Arrays.copyOfRange(tokens, 1, tokens.length)
         );
-        return getByTitle(gameTitle);
+        writeByTitle(catalogue, session, gameTitle, out);
+        return null;
+      case "protocol":
+        if (tokens.length == 2 && tokens[1].equals(BinaryProtocol.BINARY)) {
+          session.binaryFrames = true;
+        } else if (tokens.length == 2 && tokens[1].equals(BinaryProtocol.TEXT)) {
+          session.binaryFrames = false;
+          session.compress = false; // only frames can carry compressed data
+        } else {
+          return error(
+            out,
+            "Invalid command. Usage: protocol <" + BinaryProtocol.TEXT + "|" + BinaryProtocol.BINARY + "> "
+          );
+        }
+        return "Protocol set to " + tokens[1] + "\n<endoftransmission>";
+      case "compress":
+        if (tokens.length != 2 || !(tokens[1].equals("on") || tokens[1].equals("off"))) {
+          return error(out, "Invalid command. Usage: compress <on|off> ");
+        }
+        if (tokens[1].equals("on") && !session.binaryFrames) { // text responses end with a marker line, so they stay plain
+          return error(out, "Compression needs protocol " + BinaryProtocol.BINARY);
+        }
+        session.compress = tokens[1].equals("on");
+        if (!session.compress) {
+          return "Compression off\n<endoftransmission>";
+        }
+        return (
+          "Compression on for responses of " +
+          ResponseCompressor.MIN_BYTES +
+          " bytes or more\n<endoftransmission>"
+        );
+      case "suggest":
+        if (tokens.length < 2) {
+          return error(out, "Invalid command. Usage: suggest <prefix> [count] ");
+        }
+        int suggestions = SuggestIndex.MAX_K;
+        int prefixEnd = tokens.length;
+        if (tokens.length > 2) {
+          try { // a trailing number is the count, as in "suggest halo 5"
+            suggestions = Integer.parseInt(tokens[tokens.length - 1]);
+            prefixEnd--;
+          } catch (NumberFormatException e) {
+            // part of the prefix
+          }
+        }
+        if (suggestions < 1 || suggestions > SuggestIndex.MAX_K) {
+          return error(out, "Invalid number: " + suggestions + " (1 to " + SuggestIndex.MAX_K + " suggestions)");
+        }
+        int[] suggested = catalogue.suggest(
+          String.join(" ", Arrays.copyOfRange(tokens, 1, prefixEnd)),
+          suggestions,
+          session.platformFilter
+        );
+        // the best games starting with the prefix, one line each as 'top' lists them
+        return formatRanking(catalogue, suggested, suggested.length) + "<endoftransmission>";
+      case "stats-by":
+        GroupStats.Dimension by = tokens.length == 2 ? GroupStats.Dimension.named(tokens[1]) : null;
+        if (by == null) {
+          return error(out, "Invalid command. Usage: stats-by <platform|year> ");
+        }
+        // the groups are computed once per catalogue, dimension and platform filter, and the response is cached
+        // like 'top', so a repeated call is a lookup and one that missed the cache only formats the groups
+        byte[] groupStats = rankingCache.get(
+          cacheKey("stats-by", session, by.name),
+          catalogue,
+          () -> encode(formatGroupStats(by, catalogue.statsBy(by, session.platformFilter), session.platformFilter))
+        );
+        out.write(ByteBuffer.wrap(groupStats));
+        out.endOfTransmission();
+        return null;
+      case "query":
+        GameQuery.Page page;
+        try {
+          GameQuery query = GameQuery.parse(
+            request.substring("query".length()),
+            catalogue,
+            session.platformFilter
+          );
+          page = query.run(catalogue);
+        } catch (IllegalArgumentException e) { // the message says what was wrong with the query or its cursor
+          return error(out, e.getMessage());
+        }
+        writeQueryPage(catalogue, page, out);
+        return null;
+      case "reload":
+        if (!session.admin) { // reload is an admin command, only accepted from the server's own machine
+          return error(out, "Permission denied: reload is only accepted from localhost");
+        }
+        if (!requestReload("reload command")) {
+          return "A reload is already queued\n<endoftransmission>";
+        }
+        return "Reloading the game database in the background\n<endoftransmission>";
+      case "stats":
+        if (!session.admin) { // stats is an admin command too, it shows every client's traffic
+          return error(out, "Permission denied: stats is only accepted from localhost");
+        }
+        return (
+          stats.report() +
+          "Ranking cache: " +
+          rankingCache.report() +
+          "\nSearch cache: " +
+          searchCache.report() +
+          "\nAdmission: " +
+          admission.report() +
+          "\n<endoftransmission>"
+        );
       default:
-        return "Invalid command: " + command + "\n<endoftransmission>"; // if the command is not recognized, return an error message
+        return error(out, "Invalid command: " + command); // if the command is not recognized, return an error message
+    }
+  }
+
+  // Writes a page of 'query' results like 'search' does, then the cursor for the next page if there is one
+  private static void writeQueryPage(
+    Catalogue catalogue,
+    GameQuery.Page page,
+    ResponseWriter out
+  ) throws IOException {
+    for (int game : page.games()) {
+      out.write(catalogue.gameBlock(game));
+      out.print("\n");
     }
+    if (page.nextCursor() != null) {
+      out.print("More results: repeat the query with cursor=" + page.nextCursor() + "\n");
+    } else {
+      out.print(page.games().length == 0 ? "No games match the query\n" : "End of results\n");
+    }
+    out.endOfTransmission();
+  }
+
+  // Cache key of a command under the session's platform filter; arguments are passed already normalised
+  private static String cacheKey(String command, Session session, String arguments) {
+    return command + '\0' + session.platformFilter + '\0' + arguments;
   }
 
-  private String getAllPlatforms() {
+  private static byte[] encode(String response) {
+    return response.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private String getAllPlatforms(Catalogue catalogue) {
     // Create a StringBuilder to construct the response message
     StringBuilder sb = new StringBuilder();
-    System.out.println("SERVER: RETURNING ALL PLATFORMS TO USER");
+    Log.debug("SERVER: RETURNING ALL PLATFORMS TO USER");
     // Add introductory message
     sb.append(
       "Here is a list of platforms for which you can enable a filter for:\n"
     );
     // Iterate through all available platforms
-    for (String platform : platforms) {
+    for (String platform : catalogue.platforms()) {
       // Append each platform name to the response message
       sb.append(platform);
       // Add a new line for formatting
@@ -251,69 +890,24 @@ public class Server {
     return sb.toString();
   }
 
-  private String getRandomGame() {
-    // Create a new Random instance
-    Random random = new Random();
-    System.out.println("SERVER: GETTING RANDOM GAME");
-    // Get an array of all the filtered games based on platform filter
-    String[][] games = getFilteredMapByPlatform(platformFilter)
-      .values()
-      .toArray(new String[0][0]);
-    // Get a random index within the range of available games
-    int randomIndex = random.nextInt(games.length);
-    // Get the game information at the random index
-    String[] gameInfo = games[randomIndex];
-    // Extract individual fields from the game information
-    String name = gameInfo[0];
-    String platform = gameInfo[1];
-    String releaseDate = gameInfo[2];
-    String summary = gameInfo[3];
-    String metascore = gameInfo[4];
-    String userscore = gameInfo[5];
-    // Format the game information into a response message
-    String formattedGame = String.format(
-      "Title: %s\nPlatform: %s\nRelease Date: %s\nSummary: %s\nMetascore: %s\nUserscore: %s\n",
-      name,
-      platform,
-      releaseDate,
-      summary,
-      metascore,
-      userscore
-    );
-    // Create a new StringBuilder with the formatted game information
-    StringBuilder sb = new StringBuilder(formattedGame);
-    // Add end of transmission signal to the response message
-    sb.append("<endoftransmission>");
-
-    // Return the response message as a string
-    return sb.toString();
-  }
-
-  private String getRandomGames(int num) {
-    // Create a StringBuilder to construct the response message
-    StringBuilder sb = new StringBuilder();
-    System.out.println("SERVER: GETTING " + num + " RANDOM GAMES");
-    // Generate 'num' random games and append each game to the response message
-    for (int i = 0; i < num; i++) {
-      // Get a random game and append it to the response message
-      int currGame = i + 1;
-      System.out.println("SERVER: GETTING GAME " + currGame + "/" + num);
-      String randomGame = getRandomGame();
-      // Remove the last line containing <endoftransmission> to avoid duplication
-      int endIndex = randomGame.lastIndexOf("<endoftransmission>");
-      if (endIndex != -1) {
-        randomGame = randomGame.substring(0, endIndex);
-      }
-      sb.append(randomGame);
+  // Writes the picked games, each game's pre-encoded block separated by a blank line
+  void writeRandomGames(
+    Catalogue catalogue,
+    int[] picks,
+    ResponseWriter out
+  ) throws IOException {
+    if (Log.isDebugEnabled()) {
+      Log.debug("SERVER: GETTING " + picks.length + " RANDOM GAMES");
+    }
+    for (int i = 0; i < picks.length; i++) {
+      out.write(catalogue.gameBlock(picks[i]));
       // Add a new line for formatting, except for the last game
-      if (i < num - 1) {
-        sb.append("\n");
+      if (i < picks.length - 1) {
+        out.print("\n");
       }
     }
     // Add end of transmission signal to the response message
-    sb.append("<endoftransmission>");
-    // Return the response message as a string
-    return sb.toString();
+    out.endOfTransmission();
   }
 
   private String[] appendToArray(String[] arr, String[] element) {
@@ -332,146 +926,139 @@ public class Server {
     return newArr;
   }
 
-  private String getWorstGames(int numGames) {
-    // Get all games filtered by platform
-    String[][] games = getFilteredMapByPlatform(platformFilter)
-      .values()
-      .toArray(new String[0][0]);
+  String getWorstGames(
+    Catalogue catalogue,
+    int numGames,
+    String platformFilter
+  ) {
+    if (Log.isDebugEnabled()) {
+      Log.debug("SERVER: GETTING THE " + numGames + " WORST GAMES");
+    }
+    // The catalogue keeps the scored games ranked worst first, so this is just the first numGames of them
+    return formatRanking(
+      catalogue,
+      catalogue.worstOrder(platformFilter),
+      numGames
+    );
+  }
+
+  //gets top <numGames> of games
+  String getTopGames(
+    Catalogue catalogue,
+    int numGames,
+    String platformFilter
+  ) {
+    if (Log.isDebugEnabled()) {
+      Log.debug("SERVER: GETTING THE TOP " + numGames + " GAMES");
+    }
+    // The catalogue keeps the scored games ranked best first, so this is just the first numGames of them
+    return formatRanking(
+      catalogue,
+      catalogue.topOrder(platformFilter),
+      numGames
+    );
+  }
 
-    System.out.println("SERVER: GETTING THE " + numGames + " WORST GAMES");
+  // Lists the first numGames games of a ranking, one per line; the caller ends the transmission
+  private String formatRanking(
+    Catalogue catalogue,
+    int[] order,
+    int numGames
+  ) {
+    StringBuilder sb = new StringBuilder();
+    GameStore store = catalogue.store();
+    for (int i = 0; i < numGames && i < order.length; i++) {
+      int game = order[i];
+      String name = store.title(game);
+      String metascore = store.metascoreText(game);
+      String userscore = store.userscoreText(game);
+      sb
+        .append(name)
+        .append(" (Metascore: ")
+        .append(metascore)
+        .append(", Userscore: ")
+        .append(userscore)
+        .append(")\n");
+    }
+    return sb.toString();
+  }
 
-    // Filter out games with "tbd" values for Metascore or Userscore using a for loop
-    List<String[]> filteredGamesList = new ArrayList<>();
-    for (String[] game : games) {
-      if (
-        !game[4].equalsIgnoreCase("tbd") && !game[5].equalsIgnoreCase("tbd")
-      ) {
-        filteredGamesList.add(game);
-      }
+  // One block per group: the number of games, then a line per score column; the caller ends the transmission
+  private static String formatGroupStats(
+    GroupStats.Dimension by,
+    List<GroupStats.Group> groups,
+    String platformFilter
+  ) {
+    StringBuilder sb = new StringBuilder();
+    sb
+      .append("Score statistics by ")
+      .append(by.name)
+      .append(" (platform filter: ")
+      .append(platformFilter)
+      .append(")\n");
+    for (GroupStats.Group group : groups) {
+      sb
+        .append(group.name())
+        .append(": ")
+        .append(group.games())
+        .append(group.games() == 1 ? " game\n" : " games\n");
+      appendSummary(sb, "Metascore", group.metascore());
+      appendSummary(sb, "Userscore", group.userscore());
     }
-    String[][] filteredGames = filteredGamesList.toArray(new String[0][0]);
-    // Clear games to save space on heap
-    games = null;
-
-    // Sort games by metascore, then by userscore
-    Comparator<String[]> comparator = (g1, g2) -> {
-      double metascore1 = Double.parseDouble(g1[4]);
-      double metascore2 = Double.parseDouble(g2[4]);
-      double userscore1 = Double.parseDouble(g1[5]);
-      double userscore2 = Double.parseDouble(g2[5]);
-      if (metascore1 == metascore2) {
-        return Double.compare(userscore1, userscore2); // higher userscore first
-      } else {
-        return Double.compare(metascore1, metascore2); // lower metascore first
-      }
-    };
-    Arrays.parallelSort(filteredGames, comparator);
+    return sb.toString();
+  }
 
-    // Build string array of worst games
-    String[] worstGames = new String[numGames + 1];
-    for (int i = 0; i < numGames && i < filteredGames.length; i++) {
-      String[] game = filteredGames[i];
-      String name = game[0];
-      String metascore = game[4];
-      String userscore = game[5];
-      worstGames[i] =
-        name + " (Metascore: " + metascore + ", Userscore: " + userscore + ")";
+  private static void appendSummary(
+    StringBuilder sb,
+    String column,
+    GroupStats.Summary summary
+  ) {
+    sb.append("  ").append(column).append(": ");
+    if (summary.scored() > 0) {
+      double[] p = summary.percentiles();
+      sb.append(
+        String.format(
+          Locale.ROOT,
+          "mean %.1f, median %.1f, p10 %.1f, p25 %.1f, p75 %.1f, p90 %.1f, ",
+          summary.mean(),
+          summary.median(),
+          p[0],
+          p[1],
+          p[3],
+          p[4]
+        )
+      );
     }
-    // Add end of transmission signal to the last element of the array
-    worstGames[numGames] = "<endoftransmission>";
-    // Join the array elements into a single string with newline separator
-    return String.join("\n", worstGames);
+    sb.append(String.format(Locale.ROOT, "tbd %.1f%%\n", 100.0 * summary.tbd() / (summary.scored() + summary.tbd())));
   }
 
-  //gets top <numGames> of games
-  private String getTopGames(int numGames) {
-    //Gets games according to platform filter, if null, it just returns map
-    System.out.println("SERVER: GETTING THE TOP " + numGames + " GAMES");
-    String[][] games = getFilteredMapByPlatform(platformFilter)
-      .values()
-      .toArray(new String[0][0]);
-
-    // Filter out games with "tbd" values for Metascore or Userscore using a for loop
-    List<String[]> filteredGamesList = new ArrayList<>();
-    for (String[] game : games) {
-      if (
-        !game[4].equalsIgnoreCase("tbd") && !game[5].equalsIgnoreCase("tbd")
-      ) {
-        filteredGamesList.add(game);
-      }
+  void writeByTitle(
+    Catalogue catalogue,
+    Session session,
+    String gameTitle,
+    ResponseWriter out
+  ) throws IOException {
+    if (Log.isDebugEnabled()) {
+      Log.debug("SERVER: SEARCHING FOR GAME WITH TITLE " + gameTitle);
     }
-    String[][] filteredGames = filteredGamesList.toArray(new String[0][0]);
-    //save space on heap
-    games = null;
-
-    // Sort games by metascore, then by userscore
-    Comparator<String[]> comparator = (g1, g2) -> {
-      double metascore1 = Double.parseDouble(g1[4]);
-      double metascore2 = Double.parseDouble(g2[4]);
-      double userscore1 = Double.parseDouble(g1[5]);
-      double userscore2 = Double.parseDouble(g2[5]);
-      if (metascore1 == metascore2) {
-        return Double.compare(userscore2, userscore1); // higher userscore first
-      } else {
-        return Double.compare(metascore2, metascore1); // higher metascore first
-      }
-    };
-    Arrays.parallelSort(filteredGames, comparator);
-
-    // Build string array of top games
-    String[] topGames = new String[numGames + 1];
-    for (int i = 0; i < numGames && i < filteredGames.length; i++) {
-      String[] game = filteredGames[i];
-      String name = game[0];
-      String metascore = game[4];
-      String userscore = game[5];
-      topGames[i] =
-        name + " (Metascore: " + metascore + ", Userscore: " + userscore + ")";
-    }
-    topGames[numGames] = "<endoftransmission>";
-    return String.join("\n", topGames);
-  }
-
-  private String getByTitle(String gameTitle) {
-    String[][] games = getFilteredMapByPlatform(platformFilter)
-      .values()
-      .toArray(new String[0][0]);
-
-    System.out.println("SERVER: SEARCHING FOR GAME WITH TITLE " + gameTitle);
-    // Filter games by title
-    List<String[]> filteredGamesList = new ArrayList<>();
-    for (String[] game : games) {
-      if (game[0].toLowerCase().contains(gameTitle.toLowerCase())) {
-        filteredGamesList.add(game);
-      }
+    // The catalogue's title index finds the games whose title contains gameTitle, ignoring case; the matches
+    // are cached, and search ignores case, so queries that only differ in case share one entry
+    int[] matches = searchCache.get(
+      cacheKey("search", session, gameTitle.toLowerCase(Locale.ROOT)),
+      catalogue,
+      () -> catalogue.searchTitles(gameTitle, session.platformFilter)
+    );
+
+    // Write each matching game's pre-encoded block, separated by blank lines, up to MAX_RESULTS of them
+    int shown = Math.min(matches.length, MAX_RESULTS);
+    for (int i = 0; i < shown; i++) {
+      out.write(catalogue.gameBlock(matches[i]));
+      out.print("\n");
     }
-    String[][] filteredGames = filteredGamesList.toArray(new String[0][0]);
-    //save space on heap
-    games = null;
-
-    // Build string array of matching games
-    String[] matchingGames = new String[filteredGames.length + 1];
-    for (int i = 0; i < filteredGames.length; i++) {
-      String[] game = filteredGames[i];
-      String name = game[0];
-      String platform = game[1];
-      String releaseDate = game[2];
-      String summary = game[3];
-      String metascore = game[4];
-      String userscore = game[5];
-      String formattedGame = String.format(
-        "Title: %s\nPlatform: %s\nRelease Date: %s\nSummary: %s\nMetascore: %s\nUserscore: %s\n",
-        name,
-        platform,
-        releaseDate,
-        summary,
-        metascore,
-        userscore
-      );
-      matchingGames[i] = formattedGame;
+    if (shown < matches.length) {
+      out.print("Showing " + shown + " of " + matches.length + " matching games, narrow the search to see the rest\n");
     }
-    matchingGames[filteredGames.length] = "<endoftransmission>";
-    return String.join("\n", matchingGames);
+    out.endOfTransmission();
   }
 
   // Main method to start the server
@@ -483,6 +1070,12 @@ public class Server {
     }
     // Parse the port number from command-line arguments
     PORT = Integer.parseInt(args[0]);
+    // With -Dserver.shards this process routes to shard servers instead of loading games.csv itself
+    String shards = System.getProperty("server.shards");
+    if (shards != null) {
+      new ShardRouter(PORT, ShardRouter.parseShards(shards), MAX_SESSIONS).start();
+      return;
+    }
     // Create the server and start it
     Server server = new Server();
     server.start();
@@ -0,0 +1,404 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counters and latency histograms for the whole server, shown by the 'stats' command and published over JMX
+//
+// Everything on the request path is a LongAdder or an atomic increment, so recording never takes a lock or
+// allocates; the reports add the counters up when they are asked for.
+final class ServerStats implements ServerStatsMBean {
+
+  // Commands with their own counters; anything else is counted under OTHER so clients cannot add entries
+  private static final String[] COMMANDS = {
+    "random",
+    "top",
+    "worst",
+    "search",
+    "suggest",
+    "query",
+    "stats-by",
+    "platform",
+    "platforms",
+    "protocol",
+    "compress",
+    "reload",
+    "stats",
+  };
+  private static final String OTHER = "other";
+
+  private final CommandStats[] commands = new CommandStats[COMMANDS.length + 1]; // The last one is OTHER
+  private final long startedAt = System.nanoTime();
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private final LongAdder totalConnections = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connectionsRefused = new LongAdder(); // Over the session limit
+  private final LongAdder connectionsReaped = new LongAdder(); // Idle, too slow sending or too slow reading
+  private final LongAdder busyRejections = new LongAdder(); // No admission slot free in time
+  private final LongAdder rateLimited = new LongAdder(); // Over the connection's request rate
+  private final LongAdder compressedFrames = new LongAdder();
+  private final LongAdder compressionBytesIn = new LongAdder(); // Before compression
+  private final LongAdder compressionBytesOut = new LongAdder(); // After compression
+  private final LongAdder compressionNanos = new LongAdder();
+  private volatile int catalogueGames;
+  private volatile long catalogueLoadMillis;
+  private volatile Instant catalogueLoadedAt;
+
+  ServerStats() {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      commands[i] = new CommandStats(COMMANDS[i]);
+    }
+    commands[COMMANDS.length] = new CommandStats(OTHER);
+  }
+
+  // The counters for the command a request starts with, found without splitting or copying the request
+  CommandStats command(String request) {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      String name = COMMANDS[i];
+      if (
+        request.startsWith(name) &&
+        (request.length() == name.length() ||
+          Character.isWhitespace(request.charAt(name.length())))
+      ) {
+        return commands[i];
+      }
+    }
+    return commands[COMMANDS.length];
+  }
+
+  void connectionOpened() {
+    activeConnections.incrementAndGet();
+    totalConnections.increment();
+  }
+
+  void connectionClosed() {
+    activeConnections.decrementAndGet();
+  }
+
+  void connectionRefused() {
+    connectionsRefused.increment();
+  }
+
+  void connectionReaped() {
+    connectionsReaped.increment();
+  }
+
+  void busyRejection() {
+    busyRejections.increment();
+  }
+
+  void rateLimited() {
+    rateLimited.increment();
+  }
+
+  void bytesRead(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  void bytesWritten(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  // One frame's worth of a compressed response
+  void compressed(long bytesBefore, long bytesAfter, long nanos) {
+    compressedFrames.increment();
+    compressionBytesIn.add(bytesBefore);
+    compressionBytesOut.add(bytesAfter);
+    compressionNanos.add(nanos);
+  }
+
+  void catalogueLoaded(int games, long millis) {
+    catalogueGames = games;
+    catalogueLoadMillis = millis;
+    catalogueLoadedAt = Instant.now();
+  }
+
+  // Counts what is read through the stream, for front ends that read a socket as a stream
+  InputStream countReads(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          bytesIn.increment();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+          bytesIn.add(read);
+        }
+        return read;
+      }
+    };
+  }
+
+  // Registers this and one MBean per command with the platform MBean server, for jconsole and other JMX clients
+  void registerMBeans() throws JMException {
+    MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+    mbeans.registerMBean(
+      new StandardMBean(this, ServerStatsMBean.class),
+      new ObjectName("gameserver:type=Server")
+    );
+    for (CommandStats command : commands) {
+      mbeans.registerMBean(
+        new StandardMBean(command, CommandStatsMBean.class),
+        new ObjectName("gameserver:type=Command,name=" + command.name)
+      );
+    }
+  }
+
+  // The text of the 'stats' command, without the end of transmission marker
+  String report() {
+    StringBuilder report = new StringBuilder();
+    report.append("Uptime: ").append(getUptimeSeconds()).append(" s\n");
+    report
+      .append("Connections: ")
+      .append(activeConnections.get())
+      .append(" active, ")
+      .append(totalConnections.sum())
+      .append(" total, ")
+      .append(connectionsRefused.sum())
+      .append(" refused, ")
+      .append(connectionsReaped.sum())
+      .append(" reaped\n");
+    report
+      .append("Rejected: ")
+      .append(busyRejections.sum())
+      .append(" busy, ")
+      .append(rateLimited.sum())
+      .append(" rate limited\n");
+    report
+      .append("Bytes: ")
+      .append(bytesIn.sum())
+      .append(" in, ")
+      .append(bytesOut.sum())
+      .append(" out\n");
+    report
+      .append("Compression: ")
+      .append(compressedFrames.sum())
+      .append(" frames, ")
+      .append(compressionBytesIn.sum())
+      .append(" bytes to ")
+      .append(compressionBytesOut.sum())
+      .append(String.format(Locale.ROOT, " (ratio %.2f), ", getCompressionRatio()))
+      .append(TimeUnit.NANOSECONDS.toMillis(compressionNanos.sum()))
+      .append(" ms deflating\n");
+    report
+      .append("Catalogue: ")
+      .append(catalogueGames)
+      .append(" games, loaded in ")
+      .append(catalogueLoadMillis)
+      .append(" ms at ")
+      .append(catalogueLoadedAt)
+      .append('\n');
+    report.append("Log: ").append(Log.dropped()).append(" messages dropped\n");
+    report.append(
+      String.format(
+        Locale.ROOT,
+        "%-10s %10s %8s %8s %10s %10s %10s %10s %10s%n",
+        "Command",
+        "Requests",
+        "Bad",
+        "Errors",
+        "p50 us",
+        "p90 us",
+        "p99 us",
+        "p99.9 us",
+        "max us"
+      )
+    );
+    for (CommandStats command : commands) {
+      if (command.getRequests() == 0) {
+        continue;
+      }
+      report.append(
+        String.format(
+          Locale.ROOT,
+          "%-10s %10d %8d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+          command.name,
+          command.getRequests(),
+          command.getBadRequests(),
+          command.getServerErrors(),
+          command.getP50Micros(),
+          command.getP90Micros(),
+          command.getP99Micros(),
+          command.getP999Micros(),
+          command.getMaxMicros()
+        )
+      );
+    }
+    return report.toString();
+  }
+
+  @Override
+  public long getUptimeSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt);
+  }
+
+  @Override
+  public int getActiveConnections() {
+    return activeConnections.get();
+  }
+
+  @Override
+  public long getTotalConnections() {
+    return totalConnections.sum();
+  }
+
+  @Override
+  public long getConnectionsRefused() {
+    return connectionsRefused.sum();
+  }
+
+  @Override
+  public long getConnectionsReaped() {
+    return connectionsReaped.sum();
+  }
+
+  @Override
+  public long getBusyRejections() {
+    return busyRejections.sum();
+  }
+
+  @Override
+  public long getRateLimitedRequests() {
+    return rateLimited.sum();
+  }
+
+  @Override
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getCompressedFrames() {
+    return compressedFrames.sum();
+  }
+
+  // Bytes before compression per byte after, 0 before anything was compressed
+  @Override
+  public double getCompressionRatio() {
+    long after = compressionBytesOut.sum();
+    return after == 0 ? 0 : (double) compressionBytesIn.sum() / after;
+  }
+
+  @Override
+  public long getCompressionMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(compressionNanos.sum());
+  }
+
+  @Override
+  public long getRequests() {
+    long requests = 0;
+    for (CommandStats command : commands) {
+      requests += command.getRequests();
+    }
+    return requests;
+  }
+
+  @Override
+  public int getCatalogueGames() {
+    return catalogueGames;
+  }
+
+  @Override
+  public long getCatalogueLoadMillis() {
+    return catalogueLoadMillis;
+  }
+
+  @Override
+  public long getLogMessagesDropped() {
+    return Log.dropped();
+  }
+
+  // Requests, failures and latencies of one command
+  static final class CommandStats implements CommandStatsMBean {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder badRequests = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+
+    private CommandStats(String name) {
+      this.name = name;
+    }
+
+    // One answered request, timed from when it was read to when its response was handed to the front end
+    void record(long nanos, byte status) {
+      latency.record(nanos);
+      if (status == BinaryProtocol.STATUS_BAD_REQUEST) {
+        badRequests.increment();
+      } else if (status == BinaryProtocol.STATUS_SERVER_ERROR) {
+        serverErrors.increment();
+      }
+    }
+
+    @Override
+    public long getRequests() {
+      return latency.count();
+    }
+
+    @Override
+    public long getBadRequests() {
+      return badRequests.sum();
+    }
+
+    @Override
+    public long getServerErrors() {
+      return serverErrors.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+      return micros(latency.mean());
+    }
+
+    @Override
+    public double getP50Micros() {
+      return micros(latency.percentile(0.50));
+    }
+
+    @Override
+    public double getP90Micros() {
+      return micros(latency.percentile(0.90));
+    }
+
+    @Override
+    public double getP99Micros() {
+      return micros(latency.percentile(0.99));
+    }
+
+    @Override
+    public double getP999Micros() {
+      return micros(latency.percentile(0.999));
+    }
+
+    @Override
+    public double getMaxMicros() {
+      return micros(latency.max());
+    }
+
+    private static double micros(long nanos) {
+      return nanos / 1000.0;
+    }
+  }
+}
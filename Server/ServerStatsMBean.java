@@ -0,0 +1,34 @@
+// Server-wide counters published over JMX as gameserver:type=Server, see ServerStats
+public interface ServerStatsMBean {
+  long getUptimeSeconds();
+
+  int getActiveConnections();
+
+  long getTotalConnections();
+
+  long getConnectionsRefused();
+
+  long getConnectionsReaped();
+
+  long getBusyRejections();
+
+  long getRateLimitedRequests();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getCompressedFrames();
+
+  double getCompressionRatio();
+
+  long getCompressionMillis();
+
+  long getRequests();
+
+  int getCatalogueGames();
+
+  long getCatalogueLoadMillis();
+
+  long getLogMessagesDropped();
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// A connection from the router to one shard server, one request at a time over BinaryProtocol frames
+//
+// It connects on first use and again after any failure; a request that takes longer than the timeout fails and
+// drops the connection, since its response could still arrive and would answer the next request.
+final class ShardConnection implements Closeable {
+
+  private static final String END_OF_TRANSMISSION = "<endoftransmission>";
+
+  // A shard's answer: a BinaryProtocol status and the response text
+  record Reply(byte status, String body) {
+    boolean ok() {
+      return status == BinaryProtocol.STATUS_OK;
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final int timeoutMillis;
+  private Socket socket;
+  private DataInputStream in;
+  private DataOutputStream out;
+  private int nextRequestId = 1;
+
+  // The platform filter the shard's session has, kept by the router; reset whenever the connection closes
+  String appliedFilter;
+  boolean filterRejected; // The shard has no game on appliedFilter and refused it
+
+  ShardConnection(InetSocketAddress address, int timeoutMillis) {
+    this.address = address;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  // Whether a connection is up from an earlier request; the shard may still have closed it since
+  synchronized boolean isOpen() {
+    return socket != null;
+  }
+
+  synchronized Reply request(String command) throws IOException {
+    try {
+      if (socket == null) {
+        connect();
+      }
+      int requestId = nextRequestId++;
+      byte[] body = command.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(body.length);
+      out.writeInt(requestId);
+      out.writeByte(0);
+      out.writeByte(0);
+      out.write(body);
+      out.flush();
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      byte status;
+      byte flags;
+      do {
+        int length = in.readInt();
+        if (in.readInt() != requestId) {
+          throw new IOException("Response to another request from " + address);
+        }
+        status = in.readByte();
+        flags = in.readByte();
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        response.write(frame);
+      } while ((flags & BinaryProtocol.FLAG_LAST) == 0);
+      return new Reply(status, response.toString(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing left to do for a socket that failed to close
+      }
+    }
+    socket = null;
+    appliedFilter = null; // A new connection starts a new session without a filter
+    filterRejected = false;
+  }
+
+  // Connects, reads the greeting and switches to binary frames, which carry each response's status
+  private void connect() throws IOException {
+    Socket connected = new Socket();
+    try {
+      connected.connect(address, timeoutMillis);
+      connected.setSoTimeout(timeoutMillis);
+      connected.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+      String greeting = Server.readLine(in);
+      if (greeting == null || !greeting.contains(" " + BinaryProtocol.BINARY)) {
+        throw new IOException(address + " is not a game server: " + greeting);
+      }
+      out.write(("protocol " + BinaryProtocol.BINARY + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      String line;
+      while (!END_OF_TRANSMISSION.equals(line = Server.readLine(in))) {
+        if (line == null) {
+          throw new EOFException(address + " closed the connection");
+        }
+      }
+    } catch (IOException e) {
+      connected.close();
+      throw e;
+    }
+    socket = connected;
+  }
+}
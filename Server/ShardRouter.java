@@ -0,0 +1,824 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.random.RandomGenerator;
+
+// Front end that spreads the catalogue over several shard servers and answers clients like a single server
+//
+// Each shard is a normal Server started with -Dserver.shard=<index>/<count>, which keeps only its part of
+// games.csv; the router is started with -Dserver.shards=<port|host:port>,... listing the shards in index order.
+// Both sides split the games by -Dserver.shardBy: "title" (the default) hashes the title, "platform" puts every
+// game of a platform on one shard, so platform-filtered commands go to that shard alone.
+//
+// Clients speak the text protocol to the router; the router keeps one connection per shard for each client,
+// with the client's platform filter applied, and talks to the shards in binary frames so it sees each
+// response's status. 'top' and 'worst' are asked of every shard in parallel and the ranked lists are merged
+// with a k-way heap merge; 'search' and 'random' results are concatenated, up to -Dserver.maxResults games as on
+// one server. A shard that is down or does not answer within -Dserver.shardTimeoutMillis is left out, and the
+// response then ends with a PARTIAL RESULT line naming it. Clients beyond -Dserver.maxSessions are turned away
+// and idle or stalled ones closed, with the server's limits. A health check asks every shard for its size every
+// -Dserver.shardHealthMillis.
+final class ShardRouter {
+
+  static final boolean BY_PLATFORM = "platform".equalsIgnoreCase(
+    System.getProperty("server.shardBy")
+  );
+  private static final int TIMEOUT_MILLIS = Integer.getInteger(
+    "server.shardTimeoutMillis",
+    2000
+  );
+  private static final long HEALTH_INTERVAL_MILLIS = Long.getLong(
+    "server.shardHealthMillis",
+    1000
+  );
+  private static final String GREETING =
+    "Hello from server! protocols: " + BinaryProtocol.TEXT; // Only text, frames are not forwarded
+  private static final String END_OF_TRANSMISSION = "<endoftransmission>";
+  private static final String PLATFORM_SET = "Platform filter set to: ";
+  private static final String SHOWING = "Showing "; // The line ending a search that listed only some matches
+  private static final String SHOWING_END = " matching games, narrow the search to see the rest\n";
+
+  private final int port;
+  private final List<InetSocketAddress> shards;
+  private final int maxSessions;
+  private final ShardHealth[] health;
+  private final ExecutorService fanOut = Executors.newVirtualThreadPerTaskExecutor();
+  private final ServerStats stats = new ServerStats(); // Only the connection counters are used
+  private final ConnectionReaper reaper = new ConnectionReaper(stats);
+
+  ShardRouter(int port, List<InetSocketAddress> shards, int maxSessions) {
+    this.port = port;
+    this.shards = shards;
+    this.maxSessions = maxSessions;
+    health = new ShardHealth[shards.size()];
+    for (int i = 0; i < health.length; i++) {
+      health[i] = new ShardHealth(shards.get(i));
+    }
+  }
+
+  // The shard that owns a title or platform, the same on the router and the shards
+  static int shardOf(String key, int shardCount) {
+    return Math.floorMod(key.toLowerCase(Locale.ROOT).hashCode(), shardCount);
+  }
+
+  // "7001,7002" or "host:7001,host:7002"; a bare port is on this machine
+  static List<InetSocketAddress> parseShards(String spec) {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (String shard : spec.split(",")) {
+      String address = shard.trim();
+      int colon = address.lastIndexOf(':');
+      addresses.add(
+        colon < 0
+          ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+          : new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)))
+      );
+    }
+    return addresses;
+  }
+
+  void start() {
+    for (ShardHealth shard : health) {
+      Thread.ofVirtual().name("shard-health").start(shard::checkForever);
+    }
+    reaper.start();
+    Semaphore sessionPermits = new Semaphore(maxSessions);
+    try (
+      ServerSocketChannel serverSocket = ServerSocketChannel.open();
+      ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()
+    ) {
+      serverSocket.bind(new InetSocketAddress(port));
+      Log.info(
+        "Server started on port " +
+        port +
+        " (router over " +
+        shards.size() +
+        " shards by " +
+        (BY_PLATFORM ? "platform" : "title") +
+        ")"
+      );
+      while (true) {
+        SocketChannel client = serverSocket.accept();
+        if (!sessionPermits.tryAcquire()) { // Turned away at once, as the server does
+          Server.refuse(client, stats);
+          continue;
+        }
+        Log.info("SERVER: Accepted connection from " + client.socket().getInetAddress());
+        executor.execute(() -> {
+          try {
+            serve(client);
+          } finally {
+            sessionPermits.release();
+          }
+        });
+      }
+    } catch (IOException e) {
+      Log.error("SERVER: Could not serve on port " + port, e);
+    }
+  }
+
+  // A client's state: its platform filter and its connections to the shards, opened when first needed
+  private final class Session implements Closeable {
+
+    private final boolean admin; // Loopback clients may use 'reload' and 'stats', as on a single server
+    private final ShardConnection[] connections = new ShardConnection[shards.size()];
+    private String platformFilter; // Canonical name, null for all platforms
+
+    Session(boolean admin) {
+      this.admin = admin;
+    }
+
+    ShardConnection connection(int shard) {
+      if (connections[shard] == null) {
+        connections[shard] = new ShardConnection(shards.get(shard), TIMEOUT_MILLIS);
+      }
+      return connections[shard];
+    }
+
+    // The shards that can hold games on the filter
+    int[] targets() {
+      if (platformFilter != null && BY_PLATFORM) {
+        return new int[] { shardOf(platformFilter, shards.size()) };
+      }
+      int[] all = new int[shards.size()];
+      for (int i = 0; i < all.length; i++) {
+        all[i] = i;
+      }
+      return all;
+    }
+
+    @Override
+    public void close() {
+      for (ShardConnection connection : connections) {
+        if (connection != null) {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  // What one shard gave for a fanned out command: a reply, or why there is none
+  private record Result(int shard, ShardConnection.Reply reply, String failure) {
+    boolean ok() {
+      return reply != null && reply.ok();
+    }
+
+    boolean rejected() {
+      return reply != null && reply.status() == BinaryProtocol.STATUS_BAD_REQUEST;
+    }
+  }
+
+  // The client's requests in turn; the reaper closes the channel of a client that idles, sends a request too
+  // slowly or stops reading, which ends the blocked read or write here with an exception
+  private void serve(SocketChannel client) {
+    InetAddress address = client.socket().getInetAddress();
+    ConnectionReaper.Watch watch = reaper.watch(client, address);
+    stats.connectionOpened();
+    try (
+      client;
+      watch;
+      Session session = new Session(address.isLoopbackAddress());
+      InputStream in = new BufferedInputStream(watch.watchReads(Channels.newInputStream(client)));
+      Writer out = new BufferedWriter(
+        new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8)
+      )
+    ) {
+      watch.writing();
+      out.write(GREETING + System.lineSeparator());
+      out.flush();
+      watch.written();
+      while (true) {
+        watch.awaitRequest();
+        String request = Server.readLine(in);
+        if (request == null) {
+          break;
+        }
+        watch.requestRead();
+        String response;
+        try {
+          response = respond(session, request);
+        } catch (RuntimeException e) {
+          Log.error("SERVER: Request failed: " + request, e);
+          response = "Internal server error\n" + END_OF_TRANSMISSION;
+        }
+        watch.writing(); // The buffered writer sends as it fills, so the whole response is watched
+        out.write(response + System.lineSeparator());
+        out.flush();
+        watch.written();
+      }
+    } catch (ClosedChannelException e) {
+      // Reaped, and logged by the reaper
+    } catch (IOException e) {
+      Log.info("SERVER: Connection from " + address + " closed: " + e.getMessage());
+    } finally {
+      stats.connectionClosed();
+    }
+  }
+
+  private String respond(Session session, String request) {
+    String[] tokens = request.split("\\s+");
+    String command = tokens[0];
+    if (Log.isDebugEnabled()) {
+      Log.debug("CLIENT: " + command);
+    }
+    switch (command) {
+      case "top":
+        return ranked(session, request, true);
+      case "worst":
+        return ranked(session, request, false);
+      case "suggest":
+        return ranked(session, request, true); // Each shard's best k for the prefix, merged like 'top'
+
+      case "search":
+        return concatenated(session, request);
+      case "random":
+        return random(session, tokens);
+      case "platforms":
+        return platforms(session);
+      case "platform":
+        return platform(session, tokens);
+      case "protocol":
+        if (tokens.length == 2 && tokens[1].equals(BinaryProtocol.TEXT)) {
+          return "Protocol set to " + tokens[1] + "\n" + END_OF_TRANSMISSION;
+        }
+        return "Invalid command. The router only speaks " + BinaryProtocol.TEXT + "\n" + END_OF_TRANSMISSION;
+      case "query":
+        // A cursor names a position in one catalogue, and the shards each have their own
+        return "Invalid command. query is not available through the router\n" + END_OF_TRANSMISSION;
+      case "stats-by":
+        // Medians and percentiles of the shards' groups do not add up to those of the whole catalogue
+        return "Invalid command. stats-by is not available through the router\n" + END_OF_TRANSMISSION;
+      case "reload":
+        if (!session.admin) {
+          return "Permission denied: reload is only accepted from localhost\n" + END_OF_TRANSMISSION;
+        }
+        List<Result> reloads = fanOut(session, session.targets(), "reload");
+        long reloading = reloads.stream().filter(Result::ok).count();
+        return (
+          "Reloading the game database in the background on " +
+          reloading +
+          " of " +
+          reloads.size() +
+          " shards\n" +
+          partialMarker(reloads) +
+          END_OF_TRANSMISSION
+        );
+      case "stats":
+        if (!session.admin) {
+          return "Permission denied: stats is only accepted from localhost\n" + END_OF_TRANSMISSION;
+        }
+        return healthReport() + END_OF_TRANSMISSION;
+      default:
+        return "Invalid command: " + command + "\n" + END_OF_TRANSMISSION;
+    }
+  }
+
+  // Every shard's ranked list merged into one; each list is already in order, so a heap over their heads
+  // yields the overall order without sorting everything again
+  private String ranked(Session session, String request, boolean best) {
+    List<Result> results = fanOut(session, session.targets(), request);
+    String rejection = firstRejection(results);
+    if (rejection != null) {
+      return rejection;
+    }
+    if (noneAnswered(results)) {
+      return unavailable(results); // Nothing checked the arguments, so they may not even have a count
+    }
+    // A shard accepted the request, so its count is a number: the second token, or for 'suggest' an optional
+    // last one
+    String[] tokens = request.split("\\s+");
+    boolean suggest = tokens[0].equals("suggest");
+    int count;
+    if (suggest) {
+      count = SuggestIndex.MAX_K;
+      try {
+        count = tokens.length > 2 ? Integer.parseInt(tokens[tokens.length - 1]) : count;
+      } catch (NumberFormatException e) {
+        // The last token is part of the prefix
+      }
+    } else {
+      count = Integer.parseInt(tokens[1]);
+    }
+    count = Math.min(count, Server.MAX_RESULTS); // Each shard lists at most that many, as one server would
+    List<List<RankedLine>> lists = new ArrayList<>();
+    for (Result result : results) {
+      if (result.ok()) {
+        lists.add(RankedLine.parseAll(result.reply().body()));
+      }
+    }
+    Comparator<RankedLine> order = best
+      ? Comparator.comparingDouble(RankedLine::metascore).reversed().thenComparing(
+        Comparator.comparingDouble(RankedLine::userscore).reversed()
+      )
+      : Comparator.comparingDouble(RankedLine::metascore).thenComparingDouble(RankedLine::userscore);
+    if (suggest) {
+      order = order.thenComparing(RankedLine::title, String.CASE_INSENSITIVE_ORDER); // As SuggestIndex.ranks
+    }
+    // Heap entries are {list, position}; ties go to the lower shard, so the merge is deterministic
+    PriorityQueue<int[]> heads = new PriorityQueue<>(
+      Comparator.<int[], RankedLine>comparing(head -> lists.get(head[0]).get(head[1]), order)
+        .thenComparingInt(head -> head[0])
+    );
+    for (int i = 0; i < lists.size(); i++) {
+      if (!lists.get(i).isEmpty()) {
+        heads.add(new int[] { i, 0 });
+      }
+    }
+    StringBuilder response = new StringBuilder();
+    for (int taken = 0; taken < count && !heads.isEmpty(); taken++) {
+      int[] head = heads.poll();
+      response.append(lists.get(head[0]).get(head[1]).line()).append('\n');
+      if (++head[1] < lists.get(head[0]).size()) {
+        heads.add(head);
+      }
+    }
+    return response + partialMarker(results) + END_OF_TRANSMISSION;
+  }
+
+  // One line of a 'top' or 'worst' response: "<title> (Metascore: <m>, Userscore: <u>)"
+  private record RankedLine(String line, String title, double metascore, double userscore) {
+    static List<RankedLine> parseAll(String body) {
+      List<RankedLine> lines = new ArrayList<>();
+      for (String line : body.split("\n")) {
+        int scores = line.lastIndexOf(" (Metascore: ");
+        int user = line.lastIndexOf(", Userscore: ");
+        if (scores < 0 || user < scores || !line.endsWith(")")) {
+          continue;
+        }
+        lines.add(
+          new RankedLine(
+            line,
+            line.substring(0, scores),
+            parseScore(line.substring(scores + " (Metascore: ".length(), user)),
+            parseScore(line.substring(user + ", Userscore: ".length(), line.length() - 1))
+          )
+        );
+      }
+      return lines;
+    }
+
+    // A score that is not a number ("tbd") ranks below every real one in 'top' and 'suggest'; the shards leave
+    // such games out of 'worst'
+    private static double parseScore(String text) {
+      try {
+        return Double.parseDouble(text);
+      } catch (NumberFormatException e) {
+        return Double.NEGATIVE_INFINITY;
+      }
+    }
+  }
+
+  // Game blocks from every shard, one shard after another, up to Server.MAX_RESULTS of them; each shard's own
+  // "Showing X of Y" line is replaced by one for the merged list
+  private String concatenated(Session session, String request) {
+    List<Result> results = fanOut(session, session.targets(), request);
+    String rejection = firstRejection(results);
+    if (rejection != null) {
+      return rejection;
+    }
+    if (noneAnswered(results)) {
+      return unavailable(results);
+    }
+    StringBuilder response = new StringBuilder();
+    int shown = 0;
+    long matching = 0;
+    for (Result result : results) {
+      if (!result.ok()) {
+        continue;
+      }
+      String body = result.reply().body();
+      int end = body.length();
+      int blocks = 0;
+      if (body.endsWith(SHOWING_END)) {
+        // "Showing <shown> of <matching> matching games, ...": the shard matched more games than it sent
+        int trailer = body.lastIndexOf(SHOWING);
+        String counts = body.substring(trailer + SHOWING.length());
+        matching += Long.parseLong(counts.substring(counts.indexOf(" of ") + 4, counts.indexOf(" matching ")));
+        end = trailer;
+      }
+      // Each block is the game's lines and a blank line, and the next one starts with its title
+      for (int from = 0; from < end; blocks++) {
+        int next = body.indexOf("\n\nTitle: ", from);
+        int blockEnd = next < 0 || next + 2 > end ? end : next + 2;
+        if (shown < Server.MAX_RESULTS) {
+          response.append(body, from, blockEnd);
+          shown++;
+        }
+        from = blockEnd;
+      }
+      if (end == body.length()) {
+        matching += blocks;
+      }
+    }
+    if (shown < matching) {
+      response.append(SHOWING).append(shown).append(" of ").append(matching).append(SHOWING_END);
+    }
+    return response + partialMarker(results) + END_OF_TRANSMISSION;
+  }
+
+  // Splits the picks over the shards in proportion to their sizes and asks each for its share
+  private String random(Session session, String[] tokens) {
+    int[] targets = session.targets();
+    int count = 1;
+    if (tokens.length > 1) {
+      try {
+        count = Integer.parseInt(tokens[1]);
+      } catch (NumberFormatException e) {
+        count = -1;
+      }
+    }
+    String options = tokens.length > 2
+      ? " " + String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length))
+      : "";
+    if (count > Server.MAX_RESULTS) {
+      // Checked here, as the shares asked of the shards may each be under the limit
+      return "Invalid number: " + tokens[1] + " (at most " + Server.MAX_RESULTS + " games per request)\n" + END_OF_TRANSMISSION;
+    }
+    if (count < 0) {
+      // Let a shard word the error, it checks the arguments the same way
+      List<Result> results = fanOut(session, new int[] { targets[0] }, String.join(" ", tokens));
+      String rejection = firstRejection(results);
+      return rejection != null ? rejection : unavailable(results);
+    }
+    // A seeded request splits the same way every time, like a seeded request to a single server
+    RandomGenerator random = ThreadLocalRandom.current();
+    for (int i = 2; i + 1 < tokens.length; i++) {
+      if (tokens[i].equals("seed")) {
+        try {
+          random = new SplittableRandom(Long.parseLong(tokens[i + 1]));
+        } catch (NumberFormatException e) {
+          // The shards reject the seed
+        }
+      }
+    }
+    long[] weights = new long[targets.length];
+    long total = 0;
+    for (int i = 0; i < targets.length; i++) {
+      weights[i] = Math.max(0, health[targets[i]].games);
+      total += weights[i];
+    }
+    int[] shares = new int[targets.length];
+    for (int pick = 0; pick < count; pick++) {
+      if (total == 0) {
+        shares[random.nextInt(targets.length)]++; // Sizes not known yet, split evenly
+        continue;
+      }
+      long point = random.nextLong(total);
+      int shard = 0;
+      while (point >= weights[shard]) {
+        point -= weights[shard++];
+      }
+      shares[shard]++;
+    }
+    List<Integer> asked = new ArrayList<>();
+    List<Callable<Result>> calls = new ArrayList<>();
+    for (int i = 0; i < targets.length; i++) {
+      if (shares[i] > 0 || (count == 0 && i == 0)) {
+        int shard = targets[i];
+        String request = "random " + shares[i] + options;
+        asked.add(shard);
+        calls.add(() -> call(session, shard, request));
+      }
+    }
+    List<Result> results = invokeAll(asked, calls);
+    StringBuilder response = new StringBuilder();
+    Result rejected = null;
+    for (Result result : results) {
+      if (result.ok()) {
+        if (!result.reply().body().isEmpty()) {
+          if (response.length() > 0) {
+            response.append('\n'); // Blank line between games, as one server separates them
+          }
+          response.append(result.reply().body());
+        }
+      } else if (result.rejected() && rejected == null) {
+        rejected = result;
+      }
+    }
+    if (response.length() == 0 && rejected != null) {
+      return rejected.reply().body() + END_OF_TRANSMISSION; // e.g. no games on the platform anywhere
+    }
+    return response + partialMarker(results) + END_OF_TRANSMISSION;
+  }
+
+  // The platforms of all shards, each once, in the order the shards list them
+  private String platforms(Session session) {
+    List<Result> results = fanOut(session, session.targets(), "platforms");
+    Set<String> seen = new HashSet<>();
+    StringBuilder response = new StringBuilder(
+      "Here is a list of platforms for which you can enable a filter for:\n"
+    );
+    for (Result result : results) {
+      if (!result.ok()) {
+        continue;
+      }
+      String[] lines = result.reply().body().split("\n");
+      for (int i = 1; i < lines.length; i++) {
+        if (!lines[i].isEmpty() && seen.add(lines[i].toLowerCase(Locale.ROOT))) {
+          response.append(lines[i]).append('\n');
+        }
+      }
+    }
+    return response + partialMarker(results) + END_OF_TRANSMISSION;
+  }
+
+  // Checks the platform with the shards that could have it and remembers the spelling one of them accepted
+  private String platform(Session session, String[] tokens) {
+    if (tokens.length < 2) {
+      return "Invalid command. Usage: platform <platform> \n" + END_OF_TRANSMISSION;
+    }
+    String name = String.join(" ", Arrays.copyOfRange(tokens, 1, tokens.length));
+    if (name.equals("null")) {
+      session.platformFilter = null; // Applied to each shard connection before its next command
+      return PLATFORM_SET + "null\n" + END_OF_TRANSMISSION;
+    }
+    int[] targets = new int[shards.size()];
+    for (int i = 0; i < targets.length; i++) {
+      targets[i] = i;
+    }
+    if (BY_PLATFORM) {
+      targets = new int[] { shardOf(name, shards.size()) };
+    }
+    List<Integer> asked = new ArrayList<>();
+    List<Callable<Result>> calls = new ArrayList<>();
+    for (int shard : targets) {
+      asked.add(shard);
+      calls.add(() -> {
+        if (!health[shard].up) {
+          return new Result(shard, null, "shard is down");
+        }
+        ShardConnection connection = session.connection(shard);
+        boolean reused = connection.isOpen();
+        try {
+          return new Result(shard, connection.request("platform " + name), null);
+        } catch (IOException e) {
+          if (!isStale(reused, e)) {
+            throw e;
+          }
+          return new Result(shard, connection.request("platform " + name), null);
+        }
+      });
+    }
+    List<Result> results = invokeAll(asked, calls);
+    String canonical = null;
+    for (Result result : results) {
+      if (result.ok() && canonical == null) {
+        String body = result.reply().body().trim();
+        canonical = body.startsWith(PLATFORM_SET) ? body.substring(PLATFORM_SET.length()) : name;
+      }
+    }
+    if (canonical == null) {
+      String rejection = firstRejection(results);
+      return rejection != null
+        ? rejection
+        : "Could not reach the shards for platform " + name + "\n" + partialMarker(results) + END_OF_TRANSMISSION;
+    }
+    session.platformFilter = canonical;
+    for (Result result : results) {
+      ShardConnection connection = session.connection(result.shard());
+      if (result.reply() != null) {
+        // A shard that rejected the name has no game on it and kept its old filter; it is skipped while this
+        // filter is set
+        connection.appliedFilter = canonical;
+        connection.filterRejected = !result.ok();
+      }
+    }
+    return PLATFORM_SET + canonical + "\n" + partialMarker(results) + END_OF_TRANSMISSION;
+  }
+
+  // Sends the command to the shards in parallel; the results are in the order of 'targets'
+  private List<Result> fanOut(Session session, int[] targets, String command) {
+    List<Integer> asked = new ArrayList<>();
+    List<Callable<Result>> calls = new ArrayList<>();
+    for (int shard : targets) {
+      asked.add(shard);
+      calls.add(() -> call(session, shard, command));
+    }
+    return invokeAll(asked, calls);
+  }
+
+  private List<Result> invokeAll(List<Integer> shardsAsked, List<Callable<Result>> calls) {
+    List<Future<Result>> futures = new ArrayList<>();
+    for (Callable<Result> call : calls) {
+      futures.add(fanOut.submit(call));
+    }
+    List<Result> results = new ArrayList<>();
+    // One deadline for all of them, so slow shards wait out the same time rather than one after another
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2L * TIMEOUT_MILLIS);
+    for (int i = 0; i < futures.size(); i++) {
+      int shard = shardsAsked.get(i);
+      Future<Result> future = futures.get(i);
+      try {
+        // The socket timeout bounds each read; this also bounds a shard that keeps sending slowly
+        results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        future.cancel(true); // Interrupting the virtual thread closes its socket
+        health[shard].failed("timed out");
+        results.add(new Result(shard, null, "timed out after " + 2L * TIMEOUT_MILLIS + " ms"));
+      } catch (ExecutionException e) {
+        results.add(new Result(shard, null, String.valueOf(e.getCause())));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        results.add(new Result(shard, null, "interrupted"));
+      }
+    }
+    return results;
+  }
+
+  // One command on one shard, after bringing the shard's platform filter in line with the client's
+  private Result call(Session session, int shard, String command) {
+    if (!health[shard].up) {
+      return new Result(shard, null, "shard is down: " + health[shard].lastError);
+    }
+    ShardConnection connection = session.connection(shard);
+    for (boolean retried = false; ; retried = true) {
+      boolean reused = connection.isOpen();
+      try {
+        if (!Objects.equals(connection.appliedFilter, session.platformFilter)) {
+          String filter = session.platformFilter == null ? "null" : session.platformFilter;
+          ShardConnection.Reply reply = connection.request("platform " + filter);
+          connection.appliedFilter = session.platformFilter;
+          connection.filterRejected = !reply.ok();
+        }
+        if (session.platformFilter != null && connection.filterRejected) {
+          // No game on this shard has the platform, which is an empty answer rather than an error
+          return new Result(shard, new ShardConnection.Reply(BinaryProtocol.STATUS_OK, ""), null);
+        }
+        ShardConnection.Reply reply = connection.request(command);
+        if (reply.status() == BinaryProtocol.STATUS_SERVER_ERROR) {
+          return new Result(shard, null, "server error");
+        }
+        if (reply.status() == BinaryProtocol.STATUS_BUSY) {
+          return new Result(shard, null, "busy: " + reply.body().trim());
+        }
+        return new Result(shard, reply, null);
+      } catch (IOException e) {
+        if (!retried && isStale(reused, e)) {
+          continue; // The request failed, so the new connection starts over with the filter
+        }
+        health[shard].failed(String.valueOf(e));
+        return new Result(shard, null, String.valueOf(e));
+      }
+    }
+  }
+
+  // Whether a request failed because the shard closed a connection the client left idle, which a new connection
+  // fixes; a timeout says the shard itself is slow
+  private static boolean isStale(boolean reused, IOException e) {
+    return reused && !(e instanceof SocketTimeoutException);
+  }
+
+  // The response of a shard that rejected the command, which every shard would, or null
+  private static String firstRejection(List<Result> results) {
+    for (Result result : results) {
+      if (result.rejected()) {
+        return result.reply().body() + END_OF_TRANSMISSION;
+      }
+    }
+    return null;
+  }
+
+  private static boolean noneAnswered(List<Result> results) {
+    return results.stream().noneMatch(Result::ok);
+  }
+
+  // The response when no shard answered, with the reason for each
+  private String unavailable(List<Result> results) {
+    return "No shard could answer the request\n" + partialMarker(results) + END_OF_TRANSMISSION;
+  }
+
+  // One line per shard that did not answer, so a client can tell a partial result from a complete one
+  private String partialMarker(List<Result> results) {
+    StringBuilder marker = new StringBuilder();
+    for (Result result : results) {
+      if (result.failure() != null) {
+        marker
+          .append("PARTIAL RESULT: shard ")
+          .append(result.shard())
+          .append(" (")
+          .append(shards.get(result.shard()))
+          .append(") did not answer: ")
+          .append(result.failure())
+          .append('\n');
+      }
+    }
+    return marker.toString();
+  }
+
+  private String healthReport() {
+    StringBuilder report = new StringBuilder();
+    report
+      .append("Router over ")
+      .append(shards.size())
+      .append(" shards by ")
+      .append(BY_PLATFORM ? "platform" : "title")
+      .append(", timeout ")
+      .append(TIMEOUT_MILLIS)
+      .append(" ms\n");
+    report
+      .append("Connections: ")
+      .append(stats.getActiveConnections())
+      .append(" active, ")
+      .append(stats.getTotalConnections())
+      .append(" total, ")
+      .append(stats.getConnectionsRefused())
+      .append(" refused, ")
+      .append(stats.getConnectionsReaped())
+      .append(" reaped\n");
+    report.append(
+      String.format("%-6s %-24s %-6s %10s %10s %9s  %s%n", "Shard", "Address", "Status", "Games", "Check us", "Failures", "Last error")
+    );
+    for (int i = 0; i < health.length; i++) {
+      ShardHealth shard = health[i];
+      report.append(
+        String.format(
+          "%-6d %-24s %-6s %10d %10d %9d  %s%n",
+          i,
+          shard.address,
+          shard.up ? "up" : "down",
+          shard.games,
+          shard.checkMicros,
+          shard.failures.sum(),
+          shard.lastError == null ? "" : shard.lastError
+        )
+      );
+    }
+    return report.toString();
+  }
+
+  // Liveness and size of one shard, from a 'stats-by platform' request on a connection of its own; 'stats' would
+  // say more but is only answered to localhost, and a shard on another machine sees the router as remote
+  private static final class ShardHealth {
+
+    private final InetSocketAddress address;
+    private final ShardConnection connection;
+    private final LongAdder failures = new LongAdder(); // Counted by the health check and every client session
+    volatile boolean up = true; // Assumed until a check or a request fails
+    volatile long games = -1; // Sum of the shard's platform groups, -1 until known
+    volatile long checkMicros;
+    volatile String lastError;
+    private boolean sizeRefused; // Only the health check thread reads and writes it
+
+    ShardHealth(InetSocketAddress address) {
+      this.address = address;
+      connection = new ShardConnection(address, TIMEOUT_MILLIS);
+    }
+
+    void checkForever() {
+      while (true) {
+        check();
+        try {
+          Thread.sleep(HEALTH_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    private void check() {
+      long start = System.nanoTime();
+      try {
+        // The shard memoizes the groups per catalogue, so after the first check this only formats them
+        ShardConnection.Reply reply = connection.request("stats-by platform");
+        checkMicros = (System.nanoTime() - start) / 1000;
+        if (reply.ok()) {
+          // One "<platform>: <n> game(s)" line per platform, each followed by indented score lines
+          long total = 0;
+          for (String line : reply.body().split("\n")) {
+            int colon = line.lastIndexOf(": ");
+            if (!line.startsWith(" ") && colon >= 0 && (line.endsWith(" game") || line.endsWith(" games"))) {
+              total += Long.parseLong(line.substring(colon + 2, line.lastIndexOf(' ')));
+            }
+          }
+          games = total;
+        } else if (!sizeRefused) {
+          Log.warn("SERVER: Shard " + address + " did not report its size: " + reply.body().trim());
+        }
+        sizeRefused = !reply.ok(); // Logged once, not on every check
+        if (!up) {
+          Log.info("SERVER: Shard " + address + " is back up");
+        }
+        up = true;
+      } catch (IOException | RuntimeException e) {
+        failed(String.valueOf(e));
+      }
+    }
+
+    void failed(String error) {
+      failures.increment();
+      lastError = error;
+      if (up) {
+        Log.warn("SERVER: Shard " + address + " is down: " + error);
+      }
+      up = false;
+    }
+  }
+}
@@ -0,0 +1,312 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Binary snapshot of a built Catalogue, so a restart can map it instead of parsing games.csv again
+//
+// Layout: magic, format version, the partition of the CSV it holds (shard index, shard count and whether the
+// shards split by platform), the CSV's size and modification time, payload length, CRC32 of the payload, then
+// the payload written by Catalogue.writeTo. All numbers are big-endian.
+final class Snapshot {
+
+  private static final int MAGIC = 0x47534e50; // "GSNP"
+  static final int FORMAT_VERSION = 6; // Bump whenever the header or anything written by writeTo changes
+  private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8;
+
+  // The rows of the CSV a catalogue holds: all of them, or one shard's part split by title or by platform
+  record Partition(int shardIndex, int shardCount, boolean byPlatform) {
+    static final Partition ALL = new Partition(0, 1, false);
+
+    @Override
+    public String toString() {
+      return this.equals(ALL)
+        ? "all games"
+        : "shard " + shardIndex + "/" + shardCount + " by " + (byPlatform ? "platform" : "title");
+    }
+  }
+
+  private Snapshot() {}
+
+  // Maps the snapshot and rebuilds the catalogue from it, or returns null if it is missing, stale or damaged
+  static Catalogue load(Path snapshot, Path csv, Partition partition) {
+    if (!Files.exists(snapshot)) {
+      return null;
+    }
+    try (
+      FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)
+    ) {
+      MappedByteBuffer buffer = channel.map(
+        FileChannel.MapMode.READ_ONLY,
+        0,
+        channel.size()
+      );
+      if (buffer.limit() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+        Log.info(
+          "SERVER: " + snapshot + " is not a snapshot, rebuilding"
+        );
+        return null;
+      }
+      int version = buffer.getInt();
+      if (version != FORMAT_VERSION) {
+        Log.info(
+          "SERVER: Snapshot format " + version + " is out of date, rebuilding"
+        );
+        return null;
+      }
+      Partition written = new Partition(buffer.getInt(), buffer.getInt(), buffer.getInt() == 1);
+      if (!written.equals(partition)) {
+        // Another shard spec or -Dserver.shardBy holds other rows of the same CSV
+        Log.info("SERVER: Snapshot holds " + written + " but this server serves " + partition + ", rebuilding");
+        return null;
+      }
+      long csvSize = buffer.getLong();
+      long csvModified = buffer.getLong();
+      if (
+        Files.exists(csv) &&
+        (Files.size(csv) != csvSize ||
+          Files.getLastModifiedTime(csv).toMillis() != csvModified)
+      ) {
+        Log.info(
+          "SERVER: " + csv + " changed since the snapshot, rebuilding"
+        );
+        return null;
+      }
+      long payloadLength = buffer.getLong();
+      long checksum = buffer.getLong();
+      if (payloadLength != buffer.remaining()) {
+        Log.info("SERVER: Snapshot is truncated, rebuilding");
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(buffer.duplicate());
+      if (crc.getValue() != checksum) {
+        Log.info(
+          "SERVER: Snapshot checksum does not match, rebuilding"
+        );
+        return null;
+      }
+      return new Catalogue(new Reader(buffer));
+    } catch (IOException | RuntimeException e) {
+      Log.warn("SERVER: Could not read snapshot: " + e);
+      return null;
+    }
+  }
+
+  // Writes the catalogue next to a temporary name and renames it into place, so readers never see half a file
+  static void write(Catalogue catalogue, Path snapshot, Path csv, Partition partition)
+    throws IOException {
+    // Prefer the length and time of the file the catalogue was actually built from: the file may have changed
+    // since, and a snapshot stamped with the new time would be taken for a snapshot of the new contents
+    CsvLoader.Source source = catalogue.source();
+    long csvSize = source != null
+      ? source.length()
+      : Files.exists(csv) ? Files.size(csv) : -1;
+    long csvModified = source != null
+      ? source.modifiedMillis()
+      : Files.exists(csv) ? Files.getLastModifiedTime(csv).toMillis() : -1;
+    Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+    CRC32 crc = new CRC32();
+    long payloadLength;
+    try (
+      OutputStream file = Files.newOutputStream(temp);
+      CheckedOutputStream checked = new CheckedOutputStream(
+        new BufferedOutputStream(file, 1 << 16),
+        crc
+      )
+    ) {
+      // Placeholder header, filled in once the payload length and checksum are known
+      file.write(new byte[HEADER_BYTES]);
+      Writer out = new Writer(checked);
+      catalogue.writeTo(out);
+      checked.flush();
+      payloadLength = out.written;
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header
+      .putInt(MAGIC)
+      .putInt(FORMAT_VERSION)
+      .putInt(partition.shardIndex())
+      .putInt(partition.shardCount())
+      .putInt(partition.byPlatform() ? 1 : 0)
+      .putLong(csvSize)
+      .putLong(csvModified)
+      .putLong(payloadLength)
+      .putLong(crc.getValue())
+      .flip();
+    try (
+      FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)
+    ) {
+      channel.write(header, 0);
+    }
+    Files.move(
+      temp,
+      snapshot,
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE
+    );
+  }
+
+  // Writes primitives and length-prefixed arrays; arrays go through one reusable buffer instead of value by value
+  static final class Writer {
+
+    private final OutputStream out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private long written;
+
+    Writer(OutputStream out) {
+      this.out = out;
+    }
+
+    void writeInt(int value) throws IOException {
+      buffer.clear();
+      buffer.putInt(value);
+      drain();
+    }
+
+    void writeLong(long value) throws IOException {
+      buffer.clear();
+      buffer.putLong(value);
+      drain();
+    }
+
+    void writeString(String value) throws IOException {
+      writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void writeBytes(byte[] values) throws IOException {
+      writeInt(values.length);
+      out.write(values);
+      written += values.length;
+    }
+
+    // Writes 'length' bytes of a buffer from its position, without a length prefix
+    void writeRaw(ByteBuffer values, int length) throws IOException {
+      ByteBuffer source = values.duplicate();
+      byte[] chunk = new byte[Math.min(length, 1 << 16)];
+      for (int done = 0; done < length; done += chunk.length) {
+        int n = Math.min(chunk.length, length - done);
+        source.get(chunk, 0, n);
+        out.write(chunk, 0, n);
+      }
+      written += length;
+    }
+
+    void writeShorts(short[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        buffer.clear();
+        while (i < values.length && buffer.remaining() >= Short.BYTES) {
+          buffer.putShort(values[i++]);
+        }
+        drain();
+      }
+    }
+
+    void writeInts(int[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        buffer.clear();
+        while (i < values.length && buffer.remaining() >= Integer.BYTES) {
+          buffer.putInt(values[i++]);
+        }
+        drain();
+      }
+    }
+
+    void writeLongs(long[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        buffer.clear();
+        while (i < values.length && buffer.remaining() >= Long.BYTES) {
+          buffer.putLong(values[i++]);
+        }
+        drain();
+      }
+    }
+
+    void writeDoubles(double[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        buffer.clear();
+        while (i < values.length && buffer.remaining() >= Double.BYTES) {
+          buffer.putDouble(values[i++]);
+        }
+        drain();
+      }
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      out.write(buffer.array(), 0, buffer.limit());
+      written += buffer.limit();
+    }
+  }
+
+  // Reads what Writer wrote, straight out of the mapped file
+  static final class Reader {
+
+    private final ByteBuffer in;
+
+    Reader(ByteBuffer in) {
+      this.in = in;
+    }
+
+    int readInt() {
+      return in.getInt();
+    }
+
+    long readLong() {
+      return in.getLong();
+    }
+
+    String readString() {
+      return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    byte[] readBytes() {
+      byte[] values = new byte[in.getInt()];
+      in.get(values);
+      return values;
+    }
+
+    // The next 'length' bytes as a read-only view of the mapped file, without copying them
+    ByteBuffer slice(int length) {
+      ByteBuffer view = in.slice(in.position(), length).asReadOnlyBuffer();
+      in.position(in.position() + length);
+      return view;
+    }
+
+    short[] readShorts() {
+      short[] values = new short[in.getInt()];
+      in.asShortBuffer().get(values);
+      in.position(in.position() + values.length * Short.BYTES);
+      return values;
+    }
+
+    int[] readInts() {
+      int[] values = new int[in.getInt()];
+      in.asIntBuffer().get(values);
+      in.position(in.position() + values.length * Integer.BYTES);
+      return values;
+    }
+
+    long[] readLongs() {
+      long[] values = new long[in.getInt()];
+      in.asLongBuffer().get(values);
+      in.position(in.position() + values.length * Long.BYTES);
+      return values;
+    }
+
+    double[] readDoubles() {
+      double[] values = new double[in.getInt()];
+      in.asDoubleBuffer().get(values);
+      in.position(in.position() + values.length * Double.BYTES);
+      return values;
+    }
+  }
+}
@@ -0,0 +1,252 @@
+import java.util.*;
+
+// Prefix trie over lowercased titles for 'suggest', each node holding the best games below it
+//
+// The trie is path compressed, so it has fewer nodes than twice the number of titles, and is laid out in arrays:
+// nodes are numbered breadth first, which puts each node's children next to each other sorted by their first
+// char, and the edge labels are packed into one char array. Every node keeps the MAX_K best games whose title
+// starts with its prefix, so a lookup walks the prefix and copies at most k ids, however many games match.
+final class SuggestIndex {
+
+  // Suggestions kept per node and the most one request can ask for, override with -Dserver.suggestK=<n>
+  static final int MAX_K = Integer.getInteger("server.suggestK", 10);
+
+  private static final int[] NO_GAMES = new int[0];
+
+  private final char[] labels; // Edge labels back to back, node n's is labels[labelStarts[n]..labelStarts[n + 1])
+  private final int[] labelStarts;
+  private final int[] childStarts; // Node n's children are childStarts[n]..childStarts[n + 1] - 1
+  private final int[] bestStarts; // Node n's best games are best[bestStarts[n]..bestStarts[n + 1]), best first
+  private final int[] best;
+
+  // Builds the trie over the titles of 'games'; 'ranks' orders the games, lower is better, see ranks
+  SuggestIndex(GameStore store, int[] games, int[] ranks) {
+    // Titles sorted by their lowercased form, so every trie node covers a contiguous range of them
+    String[] titles = new String[games.length];
+    int[] positions = new int[games.length];
+    for (int i = 0; i < games.length; i++) {
+      titles[i] = normalize(store.title(games[i]));
+      positions[i] = i;
+    }
+    int[] order = Catalogue.sort(positions, (i1, i2) -> titles[i1].compareTo(titles[i2]));
+    String[] sorted = new String[games.length];
+    int[] sortedRanks = new int[games.length];
+    for (int i = 0; i < games.length; i++) {
+      sorted[i] = titles[order[i]];
+      sortedRanks[i] = ranks[games[order[i]]];
+    }
+
+    // Breadth first: each node is a range of sorted titles and the number of chars its parent already matched
+    IntList rangeStarts = new IntList();
+    IntList rangeEnds = new IntList();
+    IntList depths = new IntList();
+    IntList terminalEnds = new IntList(); // Titles that end at the node come first in its range, up to here
+    IntList labelStartList = new IntList();
+    IntList childStartList = new IntList();
+    StringBuilder labelText = new StringBuilder();
+    if (games.length > 0) {
+      rangeStarts.add(0);
+      rangeEnds.add(games.length);
+      depths.add(0);
+    }
+    for (int node = 0; node < rangeStarts.size(); node++) {
+      int from = rangeStarts.get(node);
+      int to = rangeEnds.get(node);
+      int depth = depths.get(node);
+      // The titles are sorted, so the first and last of the range share the prefix all of them share
+      int end = depth + commonPrefix(sorted[from], sorted[to - 1], depth);
+      labelStartList.add(labelText.length());
+      labelText.append(sorted[from], depth, end);
+      int child = from;
+      while (child < to && sorted[child].length() == end) {
+        child++;
+      }
+      terminalEnds.add(child);
+      childStartList.add(rangeStarts.size());
+      while (child < to) {
+        char next = sorted[child].charAt(end);
+        int childEnd = child + 1;
+        while (childEnd < to && sorted[childEnd].charAt(end) == next) {
+          childEnd++;
+        }
+        rangeStarts.add(child);
+        rangeEnds.add(childEnd);
+        depths.add(end);
+        child = childEnd;
+      }
+    }
+    int nodes = rangeStarts.size();
+    labelStartList.add(labelText.length());
+    childStartList.add(nodes);
+    labels = labelText.toString().toCharArray();
+    labelStarts = labelStartList.toArray();
+    childStarts = childStartList.toArray();
+
+    // Children have higher numbers than their parent, so going backwards every child is done before its parent;
+    // a node's best games are the best of the titles ending at it and of its children's best
+    int[][] bestRanks = new int[nodes][];
+    for (int node = nodes - 1; node >= 0; node--) {
+      IntList candidates = new IntList();
+      for (int i = rangeStarts.get(node); i < terminalEnds.get(node); i++) {
+        candidates.add(sortedRanks[i]);
+      }
+      for (int child = childStarts[node]; child < childStarts[node + 1]; child++) {
+        for (int rank : bestRanks[child]) {
+          candidates.add(rank);
+        }
+      }
+      int[] ranked = candidates.toArray();
+      Arrays.sort(ranked);
+      bestRanks[node] = ranked.length > MAX_K ? Arrays.copyOf(ranked, MAX_K) : ranked;
+    }
+    int[] gameByRank = new int[ranks.length];
+    for (int game = 0; game < ranks.length; game++) {
+      gameByRank[ranks[game]] = game;
+    }
+    bestStarts = new int[nodes + 1];
+    for (int node = 0; node < nodes; node++) {
+      bestStarts[node + 1] = bestStarts[node] + bestRanks[node].length;
+    }
+    best = new int[bestStarts[nodes]];
+    for (int node = 0; node < nodes; node++) {
+      for (int i = 0; i < bestRanks[node].length; i++) {
+        best[bestStarts[node] + i] = gameByRank[bestRanks[node][i]];
+      }
+    }
+  }
+
+  // Each game's place among all games: higher metascore first, then higher userscore, games without a score
+  // after the ones with, then by title; shared by the trie for every platform
+  static int[] ranks(GameStore store) {
+    int[] games = new int[store.size()];
+    for (int i = 0; i < games.length; i++) {
+      games[i] = i;
+    }
+    int[] order = Catalogue.sort(
+      games,
+      (g1, g2) -> {
+        int byMeta = compareScores(store.metascore(g1), store.metascore(g2));
+        if (byMeta != 0) {
+          return byMeta;
+        }
+        int byUser = compareScores(store.userscore(g1), store.userscore(g2));
+        return byUser != 0 ? byUser : store.title(g1).compareToIgnoreCase(store.title(g2));
+      }
+    );
+    int[] ranks = new int[order.length];
+    for (int rank = 0; rank < order.length; rank++) {
+      ranks[order[rank]] = rank;
+    }
+    return ranks;
+  }
+
+  // Higher first, a missing ("tbd") score after every real one
+  private static int compareScores(double s1, double s2) {
+    if (Double.isNaN(s1) || Double.isNaN(s2)) {
+      return Boolean.compare(Double.isNaN(s1), Double.isNaN(s2));
+    }
+    return Double.compare(s2, s1);
+  }
+
+  // The k best games whose title starts with the prefix, ignoring case; k is at most MAX_K
+  int[] suggest(String prefix, int k) {
+    if (labelStarts.length == 1) {
+      return NO_GAMES; // No games, so not even a root
+    }
+    String query = normalize(prefix);
+    int node = 0;
+    int matched = 0;
+    while (true) {
+      for (int i = labelStarts[node]; i < labelStarts[node + 1]; i++) {
+        if (matched == query.length()) {
+          return best(node, k); // The prefix ends inside this node's label
+        }
+        if (labels[i] != query.charAt(matched++)) {
+          return NO_GAMES;
+        }
+      }
+      if (matched == query.length()) {
+        return best(node, k);
+      }
+      node = child(node, query.charAt(matched));
+      if (node < 0) {
+        return NO_GAMES;
+      }
+    }
+  }
+
+  private int[] best(int node, int k) {
+    int from = bestStarts[node];
+    return Arrays.copyOfRange(best, from, Math.min(bestStarts[node + 1], from + k));
+  }
+
+  // The child whose label starts with c, found by binary search over the sorted children, or -1
+  private int child(int node, char c) {
+    int low = childStarts[node];
+    int high = childStarts[node + 1] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char first = labels[labelStarts[mid]];
+      if (first < c) {
+        low = mid + 1;
+      } else if (first > c) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  int nodeCount() {
+    return labelStarts.length - 1;
+  }
+
+  // Approximate heap used by the arrays, in bytes
+  long memoryBytes() {
+    return (
+      (long) labels.length * Character.BYTES +
+      ((long) labelStarts.length + childStarts.length + bestStarts.length + best.length) * Integer.BYTES
+    );
+  }
+
+  private static String normalize(String title) {
+    return title.toLowerCase(Locale.ROOT);
+  }
+
+  // Chars a and b have in common after 'from', both starting with the same 'from' chars
+  private static int commonPrefix(String a, String b, int from) {
+    int length = Math.min(a.length(), b.length());
+    int i = from;
+    while (i < length && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    return i - from;
+  }
+
+  // Growable list of primitive ints, for building the arrays without boxing
+  private static final class IntList {
+
+    private int[] values = new int[16];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int get(int index) {
+      return values[index];
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Trigram inverted index over lowercased game titles, so 'search' only checks titles that can contain the query
+final class TitleIndex {
+
+  private static final int[] NO_GAMES = new int[0];
+
+  private final GameStore store;
+  private final PackedStrings titles; // Lowercased title per game index, as UTF-8
+  private final long[] trigrams; // Sorted distinct trigrams, a trigram's position is its id
+  private final int[] postingStarts; // postings[postingStarts[id]..postingStarts[id + 1]) hold the games with trigram id
+  private final int[] postings; // Game indexes per trigram, ascending
+
+  TitleIndex(GameStore store) {
+    this.store = store;
+    String[] lowercased = new String[store.size()];
+    for (int i = 0; i < lowercased.length; i++) {
+      lowercased[i] = normalize(store.title(i));
+    }
+
+    // Collect one (trigram id, game) pair per distinct trigram in each title, in game order
+    TrigramIds ids = new TrigramIds();
+    int[] pairIds = new int[16];
+    int[] pairGames = new int[16];
+    int pairs = 0;
+    long[] buffer = new long[64];
+    for (int game = 0; game < lowercased.length; game++) {
+      String title = lowercased[game];
+      if (buffer.length < title.length()) {
+        buffer = new long[title.length()];
+      }
+      int count = distinctTrigrams(title, buffer);
+      if (pairs + count > pairIds.length) {
+        int capacity = Math.max(pairIds.length * 2, pairs + count);
+        pairIds = Arrays.copyOf(pairIds, capacity);
+        pairGames = Arrays.copyOf(pairGames, capacity);
+      }
+      for (int i = 0; i < count; i++) {
+        pairIds[pairs] = ids.idOf(buffer[i]);
+        pairGames[pairs] = game;
+        pairs++;
+      }
+    }
+
+    titles = new PackedStrings(lowercased, false);
+
+    // Renumber the ids so they follow the sorted order of the trigrams, which lets queries binary search them
+    trigrams = ids.sortedTrigrams();
+    int[] renumber = new int[trigrams.length];
+    for (int rank = 0; rank < trigrams.length; rank++) {
+      renumber[ids.idOf(trigrams[rank])] = rank;
+    }
+
+    // Count the games per trigram, then lay the posting lists out back to back
+    postingStarts = new int[trigrams.length + 1];
+    for (int i = 0; i < pairs; i++) {
+      pairIds[i] = renumber[pairIds[i]];
+      postingStarts[pairIds[i] + 1]++;
+    }
+    for (int id = 0; id < trigrams.length; id++) {
+      postingStarts[id + 1] += postingStarts[id];
+    }
+    postings = new int[pairs];
+    int[] fill = Arrays.copyOf(postingStarts, trigrams.length);
+    for (int i = 0; i < pairs; i++) {
+      postings[fill[pairIds[i]]++] = pairGames[i]; // Pairs are in game order, so each list comes out ascending
+    }
+  }
+
+  // Reads an index written by writeTo for the given store
+  TitleIndex(GameStore store, Snapshot.Reader in) {
+    this.store = store;
+    trigrams = in.readLongs();
+    postingStarts = in.readInts();
+    postings = in.readInts();
+    titles = new PackedStrings(in);
+  }
+
+  void writeTo(Snapshot.Writer out) throws IOException {
+    out.writeLongs(trigrams);
+    out.writeInts(postingStarts);
+    out.writeInts(postings);
+    titles.writeTo(out);
+  }
+
+  // Indexes of the games among 'candidates' (ascending) whose title contains the query, ignoring case
+  int[] search(String query, int[] candidates, int platformId) {
+    String needle = normalize(query);
+    byte[] needleBytes = needle.getBytes(StandardCharsets.UTF_8);
+    if (needle.length() < 3) {
+      // Too short for a trigram, check the lowercased titles directly
+      return scan(needleBytes, candidates);
+    }
+
+    // Intersect the posting lists of the query's trigrams, shortest first: each trigram id is packed under its
+    // posting list's length, so sorting the longs orders the ids
+    long[] queryTrigrams = new long[needle.length()];
+    int[] ids = new int[distinctTrigrams(needle, queryTrigrams)];
+    long[] byLength = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      int id = Arrays.binarySearch(trigrams, queryTrigrams[i]);
+      if (id < 0) {
+        return NO_GAMES; // No title has this trigram, so none can contain the query
+      }
+      byLength[i] = (long) (postingStarts[id + 1] - postingStarts[id]) << 32 | id;
+    }
+    Arrays.sort(byLength);
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = (int) byLength[i];
+    }
+    int[] matches = Arrays.copyOfRange(
+      postings,
+      postingStarts[ids[0]],
+      postingStarts[ids[0] + 1]
+    );
+    int count = matches.length;
+    for (int i = 1; i < ids.length && count > 0; i++) {
+      count = intersect(matches, count, ids[i]);
+    }
+
+    // Trigrams can match out of order, so confirm each candidate and apply the platform filter
+    int found = 0;
+    for (int i = 0; i < count; i++) {
+      int game = matches[i];
+      if (
+        (platformId < 0 || store.platformId(game) == platformId) &&
+        titles.contains(game, needleBytes)
+      ) {
+        matches[found++] = game;
+      }
+    }
+    return Arrays.copyOf(matches, found);
+  }
+
+  // The query in the form contains compares, worked out once for checking many games
+  static byte[] needle(String query) {
+    return normalize(query).getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Whether the game's title contains the needle, ignoring case
+  boolean contains(int game, byte[] needle) {
+    return titles.contains(game, needle);
+  }
+
+  // Approximate heap used by the index on top of the catalogue, in bytes
+  long memoryBytes() {
+    long bytes = (long) trigrams.length * Long.BYTES;
+    bytes += (long) postingStarts.length * Integer.BYTES;
+    bytes += (long) postings.length * Integer.BYTES;
+    return bytes + titles.memoryBytes();
+  }
+
+  int trigramCount() {
+    return trigrams.length;
+  }
+
+  int postingCount() {
+    return postings.length;
+  }
+
+  private int[] scan(byte[] needle, int[] candidates) {
+    int[] matches = new int[candidates.length];
+    int found = 0;
+    for (int game : candidates) {
+      if (titles.contains(game, needle)) {
+        matches[found++] = game;
+      }
+    }
+    return Arrays.copyOf(matches, found);
+  }
+
+  // Keeps the first 'count' entries of 'matches' that are also in the posting list of trigram id; both ascending
+  private int intersect(int[] matches, int count, int id) {
+    int kept = 0;
+    int j = postingStarts[id];
+    int end = postingStarts[id + 1];
+    for (int i = 0; i < count && j < end; i++) {
+      int game = matches[i];
+      while (j < end && postings[j] < game) {
+        j++;
+      }
+      if (j < end && postings[j] == game) {
+        matches[kept++] = game;
+      }
+    }
+    return kept;
+  }
+
+  private static String normalize(String title) {
+    return title.toLowerCase(Locale.ROOT);
+  }
+
+  // Packs each run of three chars into a long and writes the distinct ones, sorted, to the start of 'out'
+  private static int distinctTrigrams(String text, long[] out) {
+    int count = text.length() - 2;
+    if (count <= 0) {
+      return 0;
+    }
+    for (int i = 0; i < count; i++) {
+      out[i] =
+        ((long) text.charAt(i) << 32) |
+        ((long) text.charAt(i + 1) << 16) |
+        text.charAt(i + 2);
+    }
+    Arrays.sort(out, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || out[i] != out[i - 1]) {
+        out[distinct++] = out[i];
+      }
+    }
+    return distinct;
+  }
+
+  // Open-addressing table handing out ids to trigrams in the order they are first seen
+  private static final class TrigramIds {
+
+    private long[] keys = new long[1024];
+    private int[] values = new int[1024];
+    private boolean[] used = new boolean[1024];
+    private int size;
+
+    int idOf(long trigram) {
+      int mask = keys.length - 1;
+      int slot = Long.hashCode(trigram * 0x9E3779B97F4A7C15L) & mask;
+      while (used[slot]) {
+        if (keys[slot] == trigram) {
+          return values[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      used[slot] = true;
+      keys[slot] = trigram;
+      values[slot] = size;
+      if (++size * 2 > keys.length) {
+        grow();
+      }
+      return size - 1;
+    }
+
+    long[] sortedTrigrams() {
+      long[] sorted = new long[size];
+      int n = 0;
+      for (int slot = 0; slot < keys.length; slot++) {
+        if (used[slot]) {
+          sorted[n++] = keys[slot];
+        }
+      }
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      boolean[] oldUsed = used;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldKeys.length * 2];
+      used = new boolean[oldKeys.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldUsed[i]) {
+          int slot = Long.hashCode(oldKeys[i] * 0x9E3779B97F4A7C15L) & mask;
+          while (used[slot]) {
+            slot = (slot + 1) & mask;
+          }
+          used[slot] = true;
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+  }
+}
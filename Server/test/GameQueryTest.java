@@ -0,0 +1,249 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.LocalDate;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class GameQueryTest {
+
+  private static final Catalogue CATALOGUE = TestCatalogues.random(3000, 7);
+
+  @Test
+  void pagesFollowTheIndexOrderInBothDirections() {
+    String[] queries = {
+      "sort=meta",
+      "sort=meta:asc",
+      "sort=user:desc",
+      "sort=user:asc",
+      "sort=date:desc",
+      "sort=date:asc",
+      "sort=title",
+      "sort=title:desc",
+      "meta=60..80 sort=meta:asc",
+      "meta=60..80 sort=meta:desc",
+      "meta=60..80 sort=date:asc",
+      "user=..5 date=2005..2010-06 sort=title:desc",
+      "platform=Dreamcast sort=user:asc",
+      "platform=Dreamcast sort=user:desc",
+      "platform=Dreamcast,PC meta=90.. sort=date",
+      "title=mar sort=meta:asc",
+      "title=zelda souls sort=title",
+    };
+    for (String query : queries) {
+      List<Integer> expected = bruteForce(query);
+      assertFalse(expected.isEmpty(), query);
+      for (int limit : new int[] { 1, 7, GameQuery.MAX_LIMIT }) {
+        assertEquals(expected, allPages(query, limit), query + " limit=" + limit);
+      }
+    }
+  }
+
+  @Test
+  void theLimitMayChangeBetweenPages() {
+    GameQuery.Page first = page("sort=meta:asc limit=5", null);
+    GameQuery.Page second = page("sort=meta:asc limit=20", first.nextCursor());
+    List<Integer> games = new ArrayList<>();
+    for (int[] part : new int[][] { first.games(), second.games() }) {
+      for (int game : part) {
+        games.add(game);
+      }
+    }
+    assertEquals(bruteForce("sort=meta:asc").subList(0, 25), games);
+  }
+
+  @Test
+  void rangesIncludeBothEnds() {
+    Catalogue catalogue = TestCatalogues.of(
+      new String[] { "A", "PC", "February 29, 2012", "80", "7.5" },
+      new String[] { "B", "PC", "March 1, 2012", "79", "tbd" },
+      new String[] { "C", "PC", "January 1, 2012", "tbd", "7.5" },
+      new String[] { "D", "PC", "TBA", "81", "8" },
+      new String[] { "E", "PC", "December 31, 2011", "80", "7.4" }
+    );
+    assertEquals(List.of("E", "A"), titles(catalogue, "meta=80..80 sort=meta"));
+    assertEquals(List.of("E", "A"), titles(catalogue, "meta=80"));
+    assertEquals(List.of("B", "A", "E"), titles(catalogue, "meta=..80 sort=meta:asc"));
+    assertEquals(List.of("D", "E", "A"), titles(catalogue, "meta=80.. sort=meta:desc"));
+    assertEquals(List.of(), titles(catalogue, "meta=81..79"));
+    assertEquals(List.of("A", "C"), titles(catalogue, "user=7.5..7.5 sort=title"));
+    assertEquals(List.of("A"), titles(catalogue, "date=2012-02"));
+    assertEquals(List.of("C", "A", "B"), titles(catalogue, "date=2012 sort=date:asc"));
+    assertEquals(List.of("C", "E"), titles(catalogue, "date=2011-12-31..2012-01-01 sort=title"));
+    assertEquals(List.of("B", "A", "C", "E", "D"), titles(catalogue, "sort=date:desc"));
+  }
+
+  @Test
+  void gamesWithoutAValueComeLastInBothDirections() {
+    Catalogue catalogue = TestCatalogues.of(
+      new String[] { "A", "PC", "TBA", "tbd", "1" },
+      new String[] { "B", "PC", "TBA", "50", "2" },
+      new String[] { "C", "PC", "TBA", "tbd", "3" },
+      new String[] { "D", "PC", "TBA", "70", "4" }
+    );
+    assertEquals(List.of("B", "D", "A", "C"), titles(catalogue, "sort=meta:asc"));
+    assertEquals(List.of("D", "B", "A", "C"), titles(catalogue, "sort=meta:desc"));
+    assertEquals(List.of("B", "D"), titles(catalogue, "meta=0..100 sort=meta:asc"));
+  }
+
+  @Test
+  void rejectsCursorsOfOtherQueriesAndBadArguments() {
+    String cursor = page("sort=meta:asc limit=5", null).nextCursor();
+    assertNotNull(cursor);
+    IllegalArgumentException e = assertThrows(
+      IllegalArgumentException.class,
+      () -> page("sort=meta:desc limit=5", cursor)
+    );
+    assertTrue(e.getMessage().contains("different query"), e.getMessage());
+    assertThrows(IllegalArgumentException.class, () -> page("sort=meta limit=5", "not-a-cursor"));
+    for (String bad : new String[] { "limit=0", "limit=1001", "date=2012-13", "meta=..", "sort=score", "sort=meta:up" }) {
+      assertThrows(IllegalArgumentException.class, () -> page(bad, null), bad);
+    }
+  }
+
+  @Test
+  void aSessionFilterOnAPlatformAReloadDroppedMatchesNothing() {
+    GameQuery.Page page = GameQuery.parse("sort=title", CATALOGUE, "Amiga").run(CATALOGUE);
+    assertEquals(0, page.games().length);
+    assertNull(page.nextCursor());
+  }
+
+  private static GameQuery.Page page(String arguments, String cursor) {
+    return GameQuery
+      .parse(arguments + (cursor == null ? "" : " cursor=" + cursor), CATALOGUE, null)
+      .run(CATALOGUE);
+  }
+
+  // Every page of the query in turn, following the cursors
+  private static List<Integer> allPages(String query, int limit) {
+    List<Integer> games = new ArrayList<>();
+    String cursor = null;
+    do {
+      GameQuery.Page page = page(query + " limit=" + limit, cursor);
+      assertTrue(page.games().length <= limit);
+      for (int game : page.games()) {
+        games.add(game);
+      }
+      cursor = page.nextCursor();
+      if (cursor != null) {
+        assertEquals(limit, page.games().length, "only the last page may be short");
+      }
+    } while (cursor != null);
+    return games;
+  }
+
+  private static List<String> titles(Catalogue catalogue, String arguments) {
+    List<String> titles = new ArrayList<>();
+    for (int game : GameQuery.parse(arguments + " limit=100", catalogue, null).run(catalogue).games()) {
+      titles.add(catalogue.store().title(game));
+    }
+    return titles;
+  }
+
+  // The query answered by checking every game and sorting the matches the way QueryIndex orders them: by
+  // value with ties in catalogue order, descending reversing the games that have a value, and the ones without
+  // a value last in catalogue order
+  private static List<Integer> bruteForce(String query) {
+    GameStore store = CATALOGUE.store();
+    Map<String, String> arguments = new HashMap<>();
+    String key = null;
+    for (String token : query.split(" ")) {
+      int equals = token.indexOf('=');
+      if (equals > 0) {
+        key = token.substring(0, equals);
+        arguments.put(key, token.substring(equals + 1));
+      } else {
+        arguments.put(key, arguments.get(key) + " " + token);
+      }
+    }
+    String[] sort = arguments.getOrDefault("sort", "meta").split(":");
+    QueryIndex.Field field = QueryIndex.Field.named(sort[0]);
+    boolean descending = sort.length == 2 ? sort[1].equals("desc") : field.descendingByDefault;
+
+    List<Integer> withValue = new ArrayList<>();
+    List<Integer> withoutValue = new ArrayList<>();
+    for (int game = 0; game < store.size(); game++) {
+      if (matches(store, game, arguments)) {
+        boolean hasValue = field == QueryIndex.Field.TITLE || !Double.isNaN(value(store, field, game));
+        (hasValue ? withValue : withoutValue).add(game);
+      }
+    }
+    Comparator<Integer> order = field == QueryIndex.Field.TITLE
+      ? Comparator.comparing(game -> store.title(game).toLowerCase(Locale.ROOT))
+      : Comparator.comparingDouble(game -> value(store, field, game));
+    withValue.sort(order); // List.sort is stable
+    if (descending) {
+      Collections.reverse(withValue);
+    }
+    withValue.addAll(withoutValue);
+    return withValue;
+  }
+
+  private static boolean matches(GameStore store, int game, Map<String, String> arguments) {
+    String platforms = arguments.get("platform");
+    if (platforms != null && !Arrays.asList(platforms.split(",")).contains(store.platform(game))) {
+      return false;
+    }
+    String title = arguments.get("title");
+    if (title != null && !store.title(game).toLowerCase(Locale.ROOT).contains(title.toLowerCase(Locale.ROOT))) {
+      return false;
+    }
+    for (QueryIndex.Field field : new QueryIndex.Field[] { QueryIndex.Field.META, QueryIndex.Field.USER }) {
+      String range = arguments.get(field.name);
+      if (range != null && !within(value(store, field, game), range, Double::parseDouble, Double::parseDouble)) {
+        return false;
+      }
+    }
+    String dates = arguments.get("date");
+    return (
+      dates == null ||
+      within(
+        value(store, QueryIndex.Field.DATE, game),
+        dates,
+        from -> firstDay(from).toEpochDay(),
+        to -> lastDay(to).toEpochDay()
+      )
+    );
+  }
+
+  private interface Bound {
+    double parse(String text);
+  }
+
+  private static boolean within(double value, String range, Bound low, Bound high) {
+    if (Double.isNaN(value)) {
+      return false;
+    }
+    String[] ends = range.split("\\.\\.", -1);
+    return (
+      (ends[0].isEmpty() || value >= low.parse(ends[0])) && (ends[1].isEmpty() || value <= high.parse(ends[1]))
+    );
+  }
+
+  private static LocalDate firstDay(String text) {
+    String[] parts = text.split("-");
+    return LocalDate.of(
+      Integer.parseInt(parts[0]),
+      parts.length > 1 ? Integer.parseInt(parts[1]) : 1,
+      parts.length > 2 ? Integer.parseInt(parts[2]) : 1
+    );
+  }
+
+  private static LocalDate lastDay(String text) {
+    String[] parts = text.split("-");
+    if (parts.length == 1) {
+      return LocalDate.of(Integer.parseInt(parts[0]), 12, 31);
+    }
+    LocalDate first = firstDay(text);
+    return parts.length == 2 ? first.withDayOfMonth(first.lengthOfMonth()) : first;
+  }
+
+  // The field's value, NaN when the game has none
+  private static double value(GameStore store, QueryIndex.Field field, int game) {
+    return switch (field) {
+      case META -> store.metascore(game);
+      case USER -> store.userscore(game);
+      case DATE -> store.releaseDay(game) == GameStore.NO_DATE ? Double.NaN : store.releaseDay(game);
+      case TITLE -> throw new IllegalArgumentException();
+    };
+  }
+}
@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.LocalDate;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class GroupStatsTest {
+
+  private static final double[] PERCENTILES = { 0.10, 0.25, 0.50, 0.75, 0.90 };
+
+  // More games than one fork-join slice, so the per-slice sums are merged
+  private static final Catalogue CATALOGUE = TestCatalogues.random(10_000, 11);
+
+  @Test
+  void matchesSortingEachGroup() {
+    for (GroupStats.Dimension by : GroupStats.Dimension.values()) {
+      for (String platform : new String[] { null, "Dreamcast", "PC" }) {
+        assertGroups(CATALOGUE, by, platform);
+      }
+    }
+  }
+
+  @Test
+  void smallGroupsAndGroupsWithoutScores() {
+    Catalogue catalogue = TestCatalogues.of(
+      new String[] { "A", "PC", "May 1, 2001", "70", "tbd" },
+      new String[] { "B", "PC", "May 2, 2001", "tbd", "tbd" },
+      new String[] { "C", "Switch", "TBA", "50", "5" },
+      new String[] { "D", "PC", "June 1, 2003", "90", "9" },
+      new String[] { "E", "PC", "June 2, 2003", "80", "8" }
+    );
+    List<GroupStats.Group> years = catalogue.statsBy(GroupStats.Dimension.YEAR, null);
+    List<String> names = new ArrayList<>();
+    for (GroupStats.Group group : years) {
+      names.add(group.name());
+    }
+    assertEquals(List.of("2001", "2003", "unknown date"), names, "2002 has no games and is left out");
+    GroupStats.Group first = years.get(0);
+    assertEquals(2, first.games());
+    assertEquals(1, first.metascore().tbd());
+    assertEquals(70, first.metascore().median());
+    assertEquals(0, first.userscore().scored());
+    assertTrue(Double.isNaN(first.userscore().mean()));
+    assertTrue(Double.isNaN(first.userscore().median()));
+    assertEquals(85, years.get(1).metascore().median(), 1e-9, "the mean of the middle two");
+    assertEquals(81, years.get(1).metascore().percentiles()[0], 1e-9);
+    assertGroups(catalogue, GroupStats.Dimension.YEAR, null);
+    assertGroups(catalogue, GroupStats.Dimension.PLATFORM, null);
+  }
+
+  // Compares every group with the games of the group gathered and sorted one by one
+  private static void assertGroups(Catalogue catalogue, GroupStats.Dimension by, String platform) {
+    GameStore store = catalogue.store();
+    Map<String, List<Integer>> expected = new LinkedHashMap<>();
+    for (String name : groupNames(store, by)) {
+      expected.put(name, new ArrayList<>());
+    }
+    for (int game : catalogue.games(platform)) {
+      expected.get(groupName(store, by, game)).add(game);
+    }
+    expected.values().removeIf(List::isEmpty);
+
+    List<GroupStats.Group> groups = catalogue.statsBy(by, platform);
+    String context = by.name + " on " + platform;
+    assertEquals(List.copyOf(expected.keySet()), groups.stream().map(GroupStats.Group::name).toList(), context);
+    for (GroupStats.Group group : groups) {
+      List<Integer> games = expected.get(group.name());
+      assertEquals(games.size(), group.games(), context);
+      assertSummary(games.stream().mapToDouble(store::metascore).toArray(), group.metascore(), context);
+      assertSummary(games.stream().mapToDouble(store::userscore).toArray(), group.userscore(), context);
+    }
+  }
+
+  private static void assertSummary(double[] scores, GroupStats.Summary summary, String context) {
+    double[] scored = Arrays.stream(scores).filter(score -> !Double.isNaN(score)).sorted().toArray();
+    assertEquals(scored.length, summary.scored(), context);
+    assertEquals(scores.length - scored.length, summary.tbd(), context);
+    if (scored.length == 0) {
+      assertTrue(Double.isNaN(summary.mean()), context);
+      return;
+    }
+    assertEquals(Arrays.stream(scored).average().getAsDouble(), summary.mean(), 1e-9, context);
+    for (int p = 0; p < PERCENTILES.length; p++) {
+      double position = PERCENTILES[p] * (scored.length - 1);
+      int below = (int) position;
+      double upper = scored[Math.min(below + 1, scored.length - 1)];
+      double percentile = scored[below] + (position - below) * (upper - scored[below]);
+      assertEquals(percentile, summary.percentiles()[p], 1e-9, context + " p" + PERCENTILES[p]);
+    }
+  }
+
+  // Every possible group in output order: platforms in catalogue order, or years oldest first then no date
+  private static List<String> groupNames(GameStore store, GroupStats.Dimension by) {
+    List<String> names = new ArrayList<>();
+    if (by == GroupStats.Dimension.PLATFORM) {
+      for (int id = 0; id < store.platformCount(); id++) {
+        names.add(store.platformName(id));
+      }
+      return names;
+    }
+    TreeSet<Integer> years = new TreeSet<>();
+    for (int game = 0; game < store.size(); game++) {
+      if (store.releaseDay(game) != GameStore.NO_DATE) {
+        years.add(LocalDate.ofEpochDay(store.releaseDay(game)).getYear());
+      }
+    }
+    for (int year = years.isEmpty() ? 0 : years.first(); !years.isEmpty() && year <= years.last(); year++) {
+      names.add(Integer.toString(year));
+    }
+    names.add("unknown date");
+    return names;
+  }
+
+  private static String groupName(GameStore store, GroupStats.Dimension by, int game) {
+    if (by == GroupStats.Dimension.PLATFORM) {
+      return store.platform(game);
+    }
+    int day = store.releaseDay(game);
+    return day == GameStore.NO_DATE ? "unknown date" : Integer.toString(LocalDate.ofEpochDay(day).getYear());
+  }
+}
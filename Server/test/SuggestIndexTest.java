@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class SuggestIndexTest {
+
+  private static final Catalogue CATALOGUE = TestCatalogues.random(3000, 5);
+
+  @Test
+  void matchesScanningEveryTitle() {
+    GameStore store = CATALOGUE.store();
+    Set<String> prefixes = new TreeSet<>(List.of("", "z", "ZELDA", "zelda ", "star star 1", "mario x", "0"));
+    for (int game = 0; game < store.size(); game += 97) {
+      String title = store.title(game);
+      for (int length = 1; length <= title.length(); length += 3) {
+        prefixes.add(title.substring(0, length)); // Ends inside edge labels as well as on nodes
+      }
+    }
+    int[] ranks = SuggestIndex.ranks(store);
+    for (String platform : new String[] { null, "Dreamcast" }) {
+      for (String prefix : prefixes) {
+        for (int k : new int[] { 1, 3, SuggestIndex.MAX_K }) {
+          assertArrayEquals(
+            bruteForce(store, ranks, prefix, k, platform),
+            CATALOGUE.suggest(prefix, k, platform),
+            "'" + prefix + "' k=" + k + " on " + platform
+          );
+        }
+      }
+    }
+  }
+
+  @Test
+  void emptyCatalogueAndUnknownPlatform() {
+    Catalogue empty = TestCatalogues.of();
+    assertEquals(0, empty.suggest("a", 3, null).length);
+    assertEquals(0, CATALOGUE.suggest("a", 3, "Amiga").length);
+  }
+
+  // The k best ranked games on the platform whose title starts with the prefix, ignoring case
+  private static int[] bruteForce(GameStore store, int[] ranks, String prefix, int k, String platform) {
+    String lowercased = prefix.toLowerCase(Locale.ROOT);
+    List<Integer> matches = new ArrayList<>();
+    for (int game = 0; game < store.size(); game++) {
+      boolean onPlatform = platform == null || store.platform(game).equals(platform);
+      if (onPlatform && store.title(game).toLowerCase(Locale.ROOT).startsWith(lowercased)) {
+        matches.add(game);
+      }
+    }
+    matches.sort(Comparator.comparingInt(game -> ranks[game]));
+    return matches.stream().limit(k).mapToInt(Integer::intValue).toArray();
+  }
+}
@@ -0,0 +1,53 @@
+import java.util.*;
+
+// Catalogues built in memory for the unit tests, from rows shaped like games.csv's
+final class TestCatalogues {
+
+  private static final String[] MONTHS = {
+    "January", "February", "March", "April", "May", "June",
+    "July", "August", "September", "October", "November", "December",
+  };
+  private static final String[] WORDS = { "Mario", "Halo", "Zelda", "Souls", "Quest", "Star", "Farm", "War" };
+  // The last platform is rare, so a query on it is driven by the platform rather than walked in sort order
+  private static final String[] PLATFORMS = { "PC", "Switch", "PlayStation 4", "Xbox One", "Dreamcast" };
+  private static final int[] PLATFORM_WEIGHTS = { 30, 30, 20, 17, 3 };
+
+  private TestCatalogues() {}
+
+  // A catalogue of the rows in order, each { title, platform, release date, metascore, userscore }
+  static Catalogue of(String[]... rows) {
+    Map<String, String[]> map = new LinkedHashMap<>();
+    for (String[] row : rows) {
+      map.put(row[0], new String[] { row[0], row[1], row[2], "Summary of " + row[0], row[3], row[4] });
+    }
+    return new Catalogue(map, false, null);
+  }
+
+  // 'size' games with the same contents for the same seed: many tied scores, some "tbd" scores and some dates
+  // that are not "Month d, yyyy"
+  static Catalogue random(int size, long seed) {
+    Random random = new Random(seed);
+    String[][] rows = new String[size][];
+    for (int i = 0; i < size; i++) {
+      String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+      String date = random.nextInt(20) == 0
+        ? "TBA"
+        : MONTHS[random.nextInt(12)] + " " + (1 + random.nextInt(28)) + ", " + (1995 + random.nextInt(25));
+      String metascore = random.nextInt(10) == 0 ? "tbd" : Integer.toString(20 + random.nextInt(80));
+      String userscore = random.nextInt(8) == 0 ? "tbd" : (random.nextInt(10) + "." + random.nextInt(10));
+      rows[i] = new String[] { title, platform(random), date, metascore, userscore };
+    }
+    return of(rows);
+  }
+
+  private static String platform(Random random) {
+    int pick = random.nextInt(100);
+    for (int i = 0; i < PLATFORMS.length; i++) {
+      pick -= PLATFORM_WEIGHTS[i];
+      if (pick < 0) {
+        return PLATFORMS[i];
+      }
+    }
+    return PLATFORMS[0];
+  }
+}
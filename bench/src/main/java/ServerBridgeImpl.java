@@ -0,0 +1,138 @@
+import bench.ServerBridge;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Calls the server's package-private request helpers for the JMH benchmarks, see bench.ServerBridge
+public final class ServerBridgeImpl implements ServerBridge {
+
+  private Server server;
+  private Catalogue catalogue;
+  private final Map<String, Server.Session> sessions = new HashMap<>(); // One session per platform filter
+  private long written; // Bytes the responses wrote, read back by each call
+  private final ResponseWriter out = new ResponseWriter(
+    (buffers, offset, count) -> {
+      for (int i = offset; i < offset + count; i++) {
+        written += buffers[i].remaining();
+        buffers[i].position(buffers[i].limit());
+      }
+    },
+    true
+  );
+
+  public ServerBridgeImpl() {
+    // The server logs every request; the benchmarks measure the work, not the console
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @Override
+  public void load(Path csv) {
+    CsvLoader loader = new CsvLoader(csv, ForkJoinPool.commonPool());
+    try {
+      catalogue = new Catalogue(loader.load(), false, loader.source());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    server = new Server(catalogue);
+    sessions.clear();
+  }
+
+  @Override
+  public int readCsv(Path csv) {
+    Server reader = server != null ? server : new Server(null);
+    return reader.readCsv(new CsvLoader(csv, ForkJoinPool.commonPool())).size();
+  }
+
+  @Override
+  public List<String> platforms() {
+    return catalogue.platforms();
+  }
+
+  @Override
+  public long topGames(int count, String platform) {
+    return server.getTopGames(catalogue, count, platform).length();
+  }
+
+  @Override
+  public long worstGames(int count, String platform) {
+    return server.getWorstGames(catalogue, count, platform).length();
+  }
+
+  @Override
+  public long searchTitles(String query, String platform) {
+    written = 0;
+    try {
+      server.writeByTitle(catalogue, session(platform), query, out);
+      out.endResponse();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return written;
+  }
+
+  @Override
+  public long randomGames(int count, String platform) {
+    written = 0;
+    int[] games = server.getGamesByPlatform(catalogue, platform);
+    try {
+      server.writeRandomGames(
+        catalogue,
+        GameSampler.sample(games, count, ThreadLocalRandom.current()),
+        out
+      );
+      out.endResponse();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return written;
+  }
+
+  @Override
+  public long gamesByPlatform(String platform) {
+    return server.getGamesByPlatform(catalogue, platform).length;
+  }
+
+  @Override
+  public long groupStats(String dimension, String platform) {
+    return GroupStats.compute(
+      catalogue.store(),
+      catalogue.queryIndex(),
+      catalogue.games(platform),
+      GroupStats.Dimension.named(dimension)
+    ).size();
+  }
+
+  @Override
+  public long request(String command, String platform) {
+    written = 0;
+    try {
+      server.handleRequest(session(platform), 0, command, out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return written;
+  }
+
+  // The session filter can only be set the way a client sets it, with the 'platform' command
+  private Server.Session session(String platform) {
+    return sessions.computeIfAbsent(
+      String.valueOf(platform),
+      key -> {
+        Server.Session session = new Server.Session(false);
+        try {
+          server.handleRequest(session, 0, "platform " + platform, out);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return session;
+      }
+    );
+  }
+}
@@ -0,0 +1,103 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The request paths of the server against synthetic catalogues, with the response cache turned off so every
+// call does the full work
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Dserver.responseCacheBytes=0" })
+public class CatalogueBenchmark {
+
+  @Param({ "10000", "100000", "1000000" })
+  public int rows;
+
+  @Param({ "all", "PC" })
+  public String platform;
+
+  private ServerBridge server;
+  private String filter; // null for all platforms
+
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    server = ServerBridge.create();
+    server.load(SyntheticCsv.cached(rows));
+    filter = platform.equals("all") ? null : platform;
+  }
+
+  @Benchmark
+  public long getTopGames() {
+    return server.topGames(10, filter);
+  }
+
+  @Benchmark
+  public long getWorstGames() {
+    return server.worstGames(10, filter);
+  }
+
+  @Benchmark
+  public long getByTitle() {
+    return server.searchTitles("dark quest", filter);
+  }
+
+  @Benchmark
+  public long getByTitleShortQuery() {
+    return server.searchTitles("z", filter);
+  }
+
+  @Benchmark
+  public long getRandomGames() {
+    return server.randomGames(10, filter);
+  }
+
+  @Benchmark
+  public long getGamesByPlatform() {
+    return server.gamesByPlatform(filter);
+  }
+
+  // A selective range combined with a wide one, answered from the score indexes
+  @Benchmark
+  public long handleQueryRequest() {
+    return server.request("query meta=90.. user=..3 sort=date limit=10", filter);
+  }
+
+  // 'top' and 'search' through handleRequest; compare with -jvmArgsAppend -Dserver.stats=false for the cost of
+  // the request statistics
+  @Benchmark
+  public long handleTopRequest() {
+    return server.request("top 10", filter);
+  }
+
+  @Benchmark
+  public long handleSearchRequest() {
+    return server.request("search dark quest", filter);
+  }
+
+  // A lookup walks the prefix and copies k precomputed ids, so these should stay flat as 'rows' grows
+  @Benchmark
+  public long handleSuggestRequest() {
+    return server.request("suggest dark quest 10", filter);
+  }
+
+  @Benchmark
+  public long handleSuggestRequestShortPrefix() {
+    return server.request("suggest d 10", filter);
+  }
+
+  // The parallel reduction over every game on the filter, as the first 'stats-by year' on a catalogue runs it
+  @Benchmark
+  public long computeStatsByYear() {
+    return server.groupStats("year", filter);
+  }
+
+  // Later requests are answered from the catalogue's cache, so this should stay flat as 'rows' grows
+  @Benchmark
+  public long handleStatsByRequest() {
+    return server.request("stats-by year", filter);
+  }
+}
@@ -0,0 +1,33 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Parsing games.csv the way the server does at startup
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class ReadCsvBenchmark {
+
+  @Param({ "10000", "100000", "1000000" })
+  public int rows;
+
+  private ServerBridge server;
+  private Path csv;
+
+  @Setup(Level.Trial)
+  public void prepare() throws IOException {
+    server = ServerBridge.create();
+    csv = SyntheticCsv.cached(rows);
+  }
+
+  @Benchmark
+  public int readCsv() {
+    return server.readCsv(csv);
+  }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import java.nio.file.Path;
+
+// What the benchmarks call on the server. The server's classes live in the default package, which a named
+// package cannot import, so ServerBridgeImpl sits next to them in the default package and implements this.
+public interface ServerBridge {
+  // Parses the CSV and serves the resulting catalogue from then on
+  void load(Path csv);
+
+  // Parses the CSV the way the server does at startup; the number of games read
+  int readCsv(Path csv);
+
+  // The platforms of the loaded catalogue
+  java.util.List<String> platforms();
+
+  // The rest answer like the server's commands under the platform filter (null for all platforms) and return
+  // the response size, so the JIT cannot drop the work
+  long topGames(int count, String platform);
+
+  long worstGames(int count, String platform);
+
+  long searchTitles(String query, String platform);
+
+  long randomGames(int count, String platform);
+
+  long gamesByPlatform(String platform);
+
+  // Computes the 'stats-by' groups afresh, without the catalogue's cache; the number of groups
+  long groupStats(String dimension, String platform);
+
+  // The whole request path for a command line, parsing and instrumentation included
+  long request(String command, String platform);
+
+  static ServerBridge create() {
+    try {
+      return (ServerBridge) Class.forName("ServerBridgeImpl")
+        .getDeclaredConstructor()
+        .newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("ServerBridgeImpl is not on the classpath", e);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.SplittableRandom;
+
+// Writes games.csv files shaped like the Kaggle data: quoted fields, commas and line breaks inside summaries,
+// "tbd" scores and a handful of platforms, with unique titles so every row survives the load
+public final class SyntheticCsv {
+
+  private static final String[] PLATFORMS = {
+    "PC",
+    "PlayStation 4",
+    "Xbox One",
+    "Switch",
+    "Nintendo 64",
+    "PlayStation",
+    "Xbox 360",
+    "Wii",
+  };
+  private static final String[] MONTHS = {
+    "January",
+    "February",
+    "March",
+    "April",
+    "May",
+    "June",
+    "July",
+    "August",
+    "September",
+    "October",
+    "November",
+    "December",
+  };
+  private static final String[] WORDS = (
+    "super mario zelda halo legend dark souls quest war star fight racing city sim farm space age empire " +
+    "knight dragon shadow storm final fantasy tactics kingdom hearts metal gear street soccer tennis golf"
+  ).split(" ");
+
+  private SyntheticCsv() {}
+
+  // The CSV for 'rows' games in the temp directory, written on first use and reused by later forks
+  public static Path cached(int rows) throws IOException {
+    Path file = Path.of(System.getProperty("java.io.tmpdir"), "game-bench-" + rows + ".csv");
+    if (!Files.exists(file)) {
+      Path temp = Files.createTempFile(file.getParent(), "game-bench-", ".tmp");
+      write(temp, rows, 42);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    return file;
+  }
+
+  public static void write(Path file, int rows, long seed) throws IOException {
+    SplittableRandom random = new SplittableRandom(seed);
+    try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      out.write("name,platform,release_date,summary,meta_score,user_review\n");
+      StringBuilder title = new StringBuilder();
+      for (int i = 0; i < rows; i++) {
+        title.setLength(0);
+        for (int w = random.nextInt(1, 5); w > 0; w--) {
+          String word = WORDS[random.nextInt(WORDS.length)];
+          title.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length()).append(' ');
+        }
+        title.append(i);
+        out.write(title.toString());
+        out.write(", ");
+        out.write(PLATFORMS[random.nextInt(PLATFORMS.length)]);
+        out.write(",\"");
+        out.write(MONTHS[random.nextInt(12)] + " " + random.nextInt(1, 29) + ", " + random.nextInt(1995, 2022));
+        out.write("\",");
+        if (i % 7 == 0) {
+          out.write("\"A \"\"quoted\"\" game, with commas\nand a line break, #" + i + "\"");
+        } else {
+          out.write("Plain summary of game " + i + " with a few more words to read");
+        }
+        out.write(',');
+        out.write(Integer.toString(random.nextInt(20, 100)));
+        out.write(',');
+        if (random.nextInt(20) == 0) {
+          out.write("tbd");
+        } else {
+          out.write(random.nextInt(1, 10) + "." + random.nextInt(10));
+        }
+        out.write('\n');
+      }
+    }
+  }
+
+  // Writes a games.csv for running a server against: java -cp benchmarks.jar bench.SyntheticCsv <rows> <file>
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.out.println("Usage: java bench.SyntheticCsv <rows> <file>");
+      System.exit(1);
+    }
+    write(Path.of(args[1]), Integer.parseInt(args[0]), 42);
+  }
+}